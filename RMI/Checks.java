@@ -0,0 +1,72 @@
+import java.util.Arrays;
+
+/**
+ * Assertions of the self-checks, which run without a test framework with {@code java QueryCheck} and the like
+ * from the compiled folder. A failed check is printed and makes the self-check exit with status 1.
+ */
+public class Checks {
+
+    private static int passed = 0;
+    private static int failed = 0;
+
+    private Checks() {
+    }
+
+    /**
+     * Checks that a value equals the expected one, comparing arrays by their elements.
+     *
+     * @param what description of the value printed when the check fails.
+     */
+    public static void equal(Object expected, Object actual, String what) {
+        boolean equal = expected instanceof int[] && actual instanceof int[]
+                ? Arrays.equals((int[]) expected, (int[]) actual)
+                : expected == null ? actual == null : expected.equals(actual);
+        if (equal) {
+            passed++;
+        } else {
+            failed++;
+            System.out.println("FAILED " + what + ": expected " + describe(expected) + " but was " + describe(actual));
+        }
+    }
+
+    /**
+     * Checks that a condition holds.
+     *
+     * @param what description of the condition printed when the check fails.
+     */
+    public static void isTrue(boolean condition, String what) {
+        equal(Boolean.TRUE, condition, what);
+    }
+
+    /**
+     * Checks that the given code throws an {@link IllegalArgumentException}.
+     *
+     * @param what description of the code printed when the check fails.
+     */
+    public static void throwsIllegalArgument(Runnable code, String what) {
+        try {
+            code.run();
+        } catch (IllegalArgumentException e) {
+            passed++;
+            return;
+        }
+        failed++;
+        System.out.println("FAILED " + what + ": no IllegalArgumentException");
+    }
+
+    /**
+     * Prints the number of checks which passed and exits with status 1 if any failed.
+     *
+     * @param name name of the self-check.
+     */
+    public static void report(String name) {
+        System.out.println(name + ": " + passed + " checks passed, " + failed + " failed");
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static String describe(Object value) {
+        return value instanceof int[] ? Arrays.toString((int[]) value) : String.valueOf(value);
+    }
+}
@@ -17,6 +17,37 @@ public final class Configuration {
     public static final String NODE_USERNAME;
     public static final int LISTENER_TIMEOUT;
     public static final long BENCHMARK_TIMEOUT;
+    public static final String BENCHMARK_MODE;
+    public static final int BENCHMARK_CLIENTS;
+    public static final double BENCHMARK_RATE;
+    public static final long BENCHMARK_DURATION;
+    public static final long BENCHMARK_WARMUP;
+    public static final double BENCHMARK_ZIPF;
+    public static final int DATAGRAM_SIZE;
+    public static final int BUFFER_POOL_SIZE;
+    public static final int QUERY_CACHE_SIZE;
+    public static final long QUERY_CACHE_TTL;
+    public static final long QUERY_TIMEOUT;
+    public static final int STUB_CACHE_SIZE;
+    public static final boolean STUB_PREFETCH;
+    public static final int RMI_CALL_THREADS;
+    public static final int RMI_CALL_QUEUE_SIZE;
+    public static final int RMI_PEER_MAX_CALLS;
+    public static final int RMI_BATCH_SIZE;
+    public static final long RMI_BATCH_DELAY;
+    public static final long STATS_INTERVAL;
+    public static final String LOG_LEVEL;
+    public static final int LOG_BUFFER_SIZE;
+    public static final int ROUTING_TABLE_SIZE;
+    public static final long ROUTING_HALF_LIFE;
+    public static final double ROUTING_EXPLORATION;
+    public static final double CATALOG_FALSE_POSITIVE_RATE;
+    public static final String SEARCH_MODE;
+    public static final long RING_TIMEOUT;
+    public static final int RING_HOPS_MAX;
+    public static final int WALKERS;
+    public static final int WALK_HOPS;
+    public static final int CANCEL_RESULTS;
 
     static {
 
@@ -43,6 +74,39 @@ public final class Configuration {
         NODE_USERNAME = properties.getProperty("node.username", "mirage");
         LISTENER_TIMEOUT = Integer.parseInt(properties.getProperty("listener.timeout", "5000"));
         BENCHMARK_TIMEOUT = Integer.parseInt(properties.getProperty("benchmark.timeout", "1000"));
+        BENCHMARK_MODE = properties.getProperty("benchmark.mode", "closed").trim();
+        BENCHMARK_CLIENTS = Integer.parseInt(properties.getProperty("benchmark.clients", "4").trim());
+        BENCHMARK_RATE = Double.parseDouble(properties.getProperty("benchmark.rate", "50").trim());
+        BENCHMARK_DURATION = Long.parseLong(properties.getProperty("benchmark.duration", "30000").trim());
+        BENCHMARK_WARMUP = Long.parseLong(properties.getProperty("benchmark.warmup", "5000").trim());
+        BENCHMARK_ZIPF = Double.parseDouble(properties.getProperty("benchmark.zipf", "1.0").trim());
+        // The 4 digit length prefix of the protocol limits messages to 9999 bytes.
+        DATAGRAM_SIZE = Integer.parseInt(properties.getProperty("datagram.size", "9999").trim());
+        BUFFER_POOL_SIZE = Integer.parseInt(properties.getProperty("buffer.pool.size", "16").trim());
+        QUERY_CACHE_SIZE = Integer.parseInt(properties.getProperty("query.cache.size", "1024").trim());
+        QUERY_CACHE_TTL = Long.parseLong(properties.getProperty("query.cache.ttl", "30000").trim());
+        QUERY_TIMEOUT = Long.parseLong(properties.getProperty("query.timeout", "5000").trim());
+        STUB_CACHE_SIZE = Integer.parseInt(properties.getProperty("stub.cache.size", "256").trim());
+        STUB_PREFETCH = Boolean.parseBoolean(properties.getProperty("stub.prefetch", "true").trim());
+        RMI_CALL_THREADS = Integer.parseInt(properties.getProperty("rmi.call.threads",
+                Integer.toString(2 * Runtime.getRuntime().availableProcessors())).trim());
+        RMI_CALL_QUEUE_SIZE = Integer.parseInt(properties.getProperty("rmi.call.queue.size", "1024").trim());
+        RMI_PEER_MAX_CALLS = Integer.parseInt(properties.getProperty("rmi.peer.max.calls", "16").trim());
+        RMI_BATCH_SIZE = Integer.parseInt(properties.getProperty("rmi.batch.size", "32").trim());
+        RMI_BATCH_DELAY = Long.parseLong(properties.getProperty("rmi.batch.delay", "2").trim());
+        STATS_INTERVAL = Long.parseLong(properties.getProperty("stats.interval", "0").trim());
+        LOG_LEVEL = properties.getProperty("log.level", "INFO").trim();
+        LOG_BUFFER_SIZE = Integer.parseInt(properties.getProperty("log.buffer.size", "8192").trim());
+        ROUTING_TABLE_SIZE = Integer.parseInt(properties.getProperty("routing.table.size", "1024").trim());
+        ROUTING_HALF_LIFE = Long.parseLong(properties.getProperty("routing.half.life", "60000").trim());
+        ROUTING_EXPLORATION = Double.parseDouble(properties.getProperty("routing.exploration", "0.1").trim());
+        CATALOG_FALSE_POSITIVE_RATE = Double.parseDouble(properties.getProperty("catalog.false.positive.rate", "0.01").trim());
+        SEARCH_MODE = properties.getProperty("search.mode", "flood").trim();
+        RING_TIMEOUT = Long.parseLong(properties.getProperty("ring.timeout", "500").trim());
+        RING_HOPS_MAX = Integer.parseInt(properties.getProperty("ring.hops.max", Integer.toString(HOPS_MAX)).trim());
+        WALKERS = Integer.parseInt(properties.getProperty("walk.walkers", "4").trim());
+        WALK_HOPS = Integer.parseInt(properties.getProperty("walk.hops", "16").trim());
+        CANCEL_RESULTS = Integer.parseInt(properties.getProperty("cancel.results", "0").trim());
 
     }
 }
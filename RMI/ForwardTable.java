@@ -0,0 +1,119 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Neighbours recent queries were sent to, so that a cancel of a query follows the paths the query took,
+ * and the queries which were cancelled, so that copies of them arriving later are dropped.
+ * Entries expire after the configured time to live, and the oldest entry is evicted when the table is full,
+ * so the memory used stays constant no matter how many queries pass through the node.
+ */
+public class ForwardTable {
+
+    private final int maxSize;
+    private final long timeToLive;
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>();
+
+    /**
+     * @param maxSize    maximum number of queries remembered.
+     * @param timeToLive time in milliseconds a query is remembered.
+     */
+    public ForwardTable(int maxSize, long timeToLive) {
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Records that a query was sent to a neighbour.
+     *
+     * @param queryId  query id, 0 for queries from nodes which do not send ids.
+     * @param neighbor node the query was sent to.
+     */
+    public synchronized void addForward(long queryId, NodeData neighbor) {
+        if (queryId == 0) {
+            return;
+        }
+        Entry entry = entry(queryId);
+        if (!entry.cancelled && !entry.neighbors.contains(neighbor)) {
+            entry.neighbors.add(neighbor);
+        }
+    }
+
+    /**
+     * Marks a query as cancelled.
+     *
+     * @param queryId query id.
+     * @return neighbours the query was sent to, empty if it was already cancelled.
+     */
+    public synchronized List<NodeData> cancel(long queryId) {
+        if (queryId == 0) {
+            return Collections.emptyList();
+        }
+        Entry entry = entry(queryId);
+        if (entry.cancelled) {
+            return Collections.emptyList();
+        }
+        entry.cancelled = true;
+        List<NodeData> neighbors = entry.neighbors;
+        entry.neighbors = Collections.emptyList();
+        return neighbors;
+    }
+
+    /**
+     * @return true if the query was cancelled.
+     */
+    public synchronized boolean isCancelled(long queryId) {
+        if (queryId == 0) {
+            return false;
+        }
+        expire(System.currentTimeMillis());
+        Entry entry = entries.get(queryId);
+        return entry != null && entry.cancelled;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // existing entry of the query or a new one
+    private Entry entry(long queryId) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        Entry entry = entries.get(queryId);
+        if (entry == null) {
+            entry = new Entry(now);
+            entries.put(queryId, entry);
+            if (entries.size() > maxSize) {
+                Iterator<Long> iterator = entries.keySet().iterator();
+                iterator.next();
+                iterator.remove();
+            }
+        }
+        return entry;
+    }
+
+    // entries are in insertion order, so expired ones are at the head
+    private void expire(long now) {
+        Iterator<Map.Entry<Long, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().getValue().created < timeToLive) {
+                break;
+            }
+            iterator.remove();
+        }
+    }
+
+    private static class Entry {
+
+        private final long created;
+        private List<NodeData> neighbors = new ArrayList<NodeData>(2);
+        private boolean cancelled = false;
+
+        Entry(long created) {
+            this.created = created;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Searches started by this node, keyed by query id, so that any number of them can be outstanding at once
+ * and each result is timed against the query it answers. A query is removed and completed when it reaches
+ * its maximum number of results or its deadline, whichever comes first, and results arriving after that are ignored.
+ */
+public class InFlightQueryTable {
+
+    private final ConcurrentHashMap<Long, InFlightQuery> queries = new ConcurrentHashMap<Long, InFlightQuery>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "in-flight-query-timer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private volatile InFlightQuery latest = null;
+
+    /**
+     * Adds a query that is about to be sent.
+     *
+     * @param queryId        unique id of the query.
+     * @param query          canonical query.
+     * @param timeout        time in milliseconds results are accepted for.
+     * @param maxResults     number of results after which the query completes early.
+     * @param resultListener called with every accepted result, may be null.
+     * @return the new entry.
+     */
+    public InFlightQuery start(long queryId, String query, long timeout, int maxResults, Consumer<SearchResult> resultListener) {
+        final InFlightQuery inFlightQuery = new InFlightQuery(queryId, query, timeout, maxResults, resultListener);
+        queries.put(queryId, inFlightQuery);
+        latest = inFlightQuery;
+        inFlightQuery.setTimeoutTask(timer.schedule(new Runnable() {
+            public void run() {
+                inFlightQuery.complete();
+            }
+        }, timeout, TimeUnit.MILLISECONDS));
+        // Whatever completes the query, including a caller cancelling it, removes it from the table.
+        inFlightQuery.getCompletion().whenComplete(new BiConsumer<List<SearchResult>, Throwable>() {
+            public void accept(List<SearchResult> results, Throwable throwable) {
+                queries.remove(inFlightQuery.getQueryId(), inFlightQuery);
+                for (Long queryId : inFlightQuery.getQueryIds()) {
+                    queries.remove(queryId, inFlightQuery);
+                }
+            }
+        });
+        return inFlightQuery;
+    }
+
+    /**
+     * Records a received result with the query it answers.
+     * Owner nodes which do not send the query id back are credited to the query started last.
+     *
+     * @return time from sending the query to receiving the result in nanoseconds, -1 if the query is unknown
+     * or already completed.
+     */
+    public long onResult(SearchResult result) {
+        InFlightQuery inFlightQuery = result.getQueryId() != 0 ? queries.get(result.getQueryId()) : latest;
+        if (inFlightQuery == null || inFlightQuery.isExpired(System.nanoTime())) {
+            return -1;
+        }
+        long elapsed = inFlightQuery.addResult(result);
+        if (elapsed >= 0 && inFlightQuery.getResultCount() >= inFlightQuery.getMaxResults()) {
+            inFlightQuery.complete();
+        }
+        return elapsed;
+    }
+
+    /**
+     * Records a send of a query, so that results carrying the id of the send are credited to the query.
+     *
+     * @param inFlightQuery query being sent.
+     * @param queryId       id it is sent with, the id of the query itself for the first send.
+     * @param hops          hops it is sent with.
+     * @param neighbours    neighbours it is sent to with this id, the first hops of its results.
+     */
+    public void addSend(InFlightQuery inFlightQuery, long queryId, int hops, List<NodeData> neighbours) {
+        inFlightQuery.addSend(queryId, hops, neighbours);
+        queries.put(queryId, inFlightQuery);
+        if (inFlightQuery.getCompletion().isDone()) {
+            queries.remove(queryId, inFlightQuery);
+        }
+    }
+
+    /**
+     * Runs a task on the deadline timer, such as the next ring of a search.
+     *
+     * @param task  task to run, which must not block.
+     * @param delay time in milliseconds before it runs.
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delay) {
+        return timer.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    public InFlightQuery get(long queryId) {
+        return queries.get(queryId);
+    }
+
+    public int size() {
+        return queries.size();
+    }
+
+    /**
+     * Completes all outstanding queries and stops the deadline timer.
+     */
+    public void shutdown() {
+        for (InFlightQuery inFlightQuery : queries.values()) {
+            inFlightQuery.complete();
+        }
+        timer.shutdownNow();
+    }
+}
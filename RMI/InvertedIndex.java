@@ -0,0 +1,187 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inverted index over the word tokens of the local file names.
+ * Terms are lower cased runs of letters, digits and underscores, which is what the
+ * word boundary of the previous regex based matching considered a word.
+ */
+public class InvertedIndex {
+
+    private final List<String> fileNames;
+    private final String[][] fileTokens;
+    private final Map<String, PostingList> postings;
+    private final String[] sortedTerms;
+
+    public InvertedIndex(List<String> fileNames) {
+        this.fileNames = new ArrayList<String>(fileNames);
+        this.fileTokens = new String[this.fileNames.size()][];
+
+        Map<String, PostingList.Builder> builders = new HashMap<String, PostingList.Builder>();
+        for (int fileId = 0; fileId < this.fileNames.size(); fileId++) {
+            List<String> tokens = tokenize(this.fileNames.get(fileId));
+            fileTokens[fileId] = tokens.toArray(new String[tokens.size()]);
+            for (String token : tokens) {
+                PostingList.Builder builder = builders.get(token);
+                if (builder == null) {
+                    builder = new PostingList.Builder();
+                    builders.put(token, builder);
+                }
+                builder.add(fileId);
+            }
+        }
+
+        postings = new HashMap<String, PostingList>(builders.size() * 2);
+        for (Map.Entry<String, PostingList.Builder> entry : builders.entrySet()) {
+            postings.put(entry.getKey(), entry.getValue().build());
+        }
+        sortedTerms = postings.keySet().toArray(new String[postings.size()]);
+        Arrays.sort(sortedTerms);
+    }
+
+    public int size() {
+        return fileNames.size();
+    }
+
+    public String getFileName(int fileId) {
+        return fileNames.get(fileId);
+    }
+
+    /**
+     * Returns the posting list of a single normalized term.
+     *
+     * @param term lower cased term.
+     * @return posting list of the term, empty if the term is not indexed.
+     */
+    public PostingList getPostings(String term) {
+        PostingList postingList = postings.get(term);
+        return postingList == null ? PostingList.EMPTY : postingList;
+    }
+
+    /**
+     * Finds the files matched by the query.
+     *
+     * @param query parsed search query.
+     * @return matching file names.
+     */
+    public List<String> search(Query query) {
+        PostingList matches = query.evaluate(this);
+
+        List<String> matchingFileNames = new ArrayList<String>(matches.size());
+        for (int i = 0; i < matches.size(); i++) {
+            matchingFileNames.add(fileNames.get(matches.get(i)));
+        }
+        return matchingFileNames;
+    }
+
+    /**
+     * Finds the files which contain the given terms as a consecutive phrase.
+     *
+     * @param terms normalized terms of the phrase.
+     * @return posting list of the matching files.
+     */
+    public PostingList matchPhrase(String[] terms) {
+        if (terms.length == 0) {
+            return PostingList.EMPTY;
+        }
+
+        // Intersect starting from the rarest term so that the candidate set stays small.
+        List<PostingList> termPostings = new ArrayList<PostingList>(terms.length);
+        for (String term : terms) {
+            PostingList postingList = getPostings(term);
+            if (postingList.size() == 0) {
+                return PostingList.EMPTY;
+            }
+            termPostings.add(postingList);
+        }
+        Collections.sort(termPostings, new Comparator<PostingList>() {
+            public int compare(PostingList a, PostingList b) {
+                return a.size() - b.size();
+            }
+        });
+        PostingList candidates = termPostings.get(0);
+        for (int i = 1; i < termPostings.size() && candidates.size() > 0; i++) {
+            candidates = candidates.intersect(termPostings.get(i));
+        }
+
+        if (terms.length == 1) {
+            return candidates;
+        }
+
+        // Verify that the terms are adjacent in the candidate files.
+        PostingList.Builder matches = new PostingList.Builder();
+        for (int i = 0; i < candidates.size(); i++) {
+            int fileId = candidates.get(i);
+            if (containsPhrase(fileTokens[fileId], terms)) {
+                matches.add(fileId);
+            }
+        }
+        return matches.build();
+    }
+
+    /**
+     * Finds the files which contain a term starting with the given prefix.
+     *
+     * @param prefix normalized term prefix.
+     * @return posting list of the matching files.
+     */
+    public PostingList matchPrefix(String prefix) {
+        int position = Arrays.binarySearch(sortedTerms, prefix);
+        if (position < 0) {
+            position = -position - 1;
+        }
+        PostingList matches = PostingList.EMPTY;
+        while (position < sortedTerms.length && sortedTerms[position].startsWith(prefix)) {
+            matches = matches.union(postings.get(sortedTerms[position]));
+            position++;
+        }
+        return matches;
+    }
+
+    /**
+     * Splits the text in to lower cased word tokens.
+     *
+     * @param text text to tokenize.
+     * @return list of tokens in the order they appear.
+     */
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<String>();
+        int start = -1;
+        for (int i = 0; i < text.length(); i++) {
+            if (isWordChar(text.charAt(i))) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+        if (start >= 0) {
+            tokens.add(text.substring(start).toLowerCase());
+        }
+        return tokens;
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    private static boolean containsPhrase(String[] tokens, String[] phrase) {
+        for (int start = 0; start + phrase.length <= tokens.length; start++) {
+            int matched = 0;
+            while (matched < phrase.length && tokens[start + matched].equals(phrase[matched])) {
+                matched++;
+            }
+            if (matched == phrase.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,204 @@
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+/**
+ * Issues searches through a node for a fixed time and reports the achieved throughput and latencies.
+ * <ul>
+ * <li>In closed loop mode a fixed number of clients each send a search, wait for it to complete and send the next,
+ * which measures the throughput the network sustains at that concurrency.</li>
+ * <li>In open loop mode searches are started at a target rate with exponentially distributed gaps, whether or not
+ * earlier searches have completed. Latencies are measured from the time a search was due, so a node falling behind
+ * shows up in the latencies instead of lowering the rate.</li>
+ * </ul>
+ * Queries are drawn from the query list with Zipf popularity, the first distinct query being the most popular.
+ * A search succeeds once it receives its first result, its latency is the time to that result. Searches started
+ * during the warm-up are sent but not counted. Searches the node had nowhere to send are counted apart, and
+ * a closed loop client backs off after one instead of trying again at once.
+ */
+public class LoadGenerator {
+
+    // Time in milliseconds a closed loop client waits after a search which could not be sent.
+    private static final long UNSENT_BACKOFF = 100;
+
+    private final Node node;
+    private final List<String> queries;
+    private final double[] cumulativeWeights;
+    private final LongAdder started = new LongAdder();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder unsent = new LongAdder();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final Histogram latencies = new Histogram();
+
+    /**
+     * @param node         node the searches are sent from.
+     * @param queryList    queries in order of popularity, repeated queries count once.
+     * @param zipfExponent skew of the popularity, 0 for a uniform mix.
+     */
+    public LoadGenerator(Node node, List<String> queryList, double zipfExponent) {
+        this.node = node;
+        this.queries = new ArrayList<String>(new LinkedHashSet<String>(queryList));
+        if (queries.isEmpty()) {
+            throw new IllegalArgumentException("The query list is empty");
+        }
+        cumulativeWeights = new double[queries.size()];
+        double total = 0;
+        for (int rank = 0; rank < queries.size(); rank++) {
+            total += 1 / Math.pow(rank + 1, zipfExponent);
+            cumulativeWeights[rank] = total;
+        }
+        for (int rank = 0; rank < queries.size(); rank++) {
+            cumulativeWeights[rank] /= total;
+        }
+    }
+
+    /**
+     * Runs closed loop clients, each sending its next search as soon as the previous one completed.
+     *
+     * @param clients  number of concurrent searches.
+     * @param duration time in milliseconds searches are counted for.
+     * @param warmUp   time in milliseconds before the counting starts.
+     * @param timeout  time in milliseconds a search waits for its first result.
+     */
+    public void runClosedLoop(int clients, long duration, long warmUp, final long timeout) throws InterruptedException {
+        final long measureStart = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(warmUp);
+        final long end = measureStart + TimeUnit.MILLISECONDS.toNanos(duration);
+        final CountDownLatch done = new CountDownLatch(clients);
+        for (int i = 0; i < clients; i++) {
+            Thread client = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        long due;
+                        while ((due = System.nanoTime()) < end) {
+                            CompletableFuture<List<SearchResult>> search = start(due, measureStart, timeout);
+                            if (search != null) {
+                                search.join();
+                            } else {
+                                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(UNSENT_BACKOFF));
+                            }
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "load-client-" + i);
+            client.setDaemon(true);
+            client.start();
+        }
+        done.await();
+        report("closed loop, " + clients + " clients", duration);
+    }
+
+    /**
+     * Starts searches at the given average rate, with Poisson arrivals.
+     *
+     * @param rate     searches per second.
+     * @param duration time in milliseconds searches are counted for.
+     * @param warmUp   time in milliseconds before the counting starts.
+     * @param timeout  time in milliseconds a search waits for its first result.
+     */
+    public void runOpenLoop(double rate, long duration, long warmUp, long timeout) throws InterruptedException {
+        long measureStart = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(warmUp);
+        long end = measureStart + TimeUnit.MILLISECONDS.toNanos(duration);
+        double meanGapNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        long due = System.nanoTime();
+        while (due < end) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            start(due, measureStart, timeout);
+            due += (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * meanGapNanos);
+        }
+        // Searches still running are given their timeout to complete.
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) + TimeUnit.SECONDS.toNanos(1);
+        while (outstanding.get() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        report("open loop, " + rate + " searches/s", duration);
+    }
+
+    // starts a search due at the given time, returns null if the query was invalid or the node had no one to send it to
+    private CompletableFuture<List<SearchResult>> start(final long due, long measureStart, long timeout) {
+        final boolean measured = due >= measureStart;
+        String query = nextQuery();
+        CompletableFuture<List<SearchResult>> search;
+        try {
+            search = node.searchAsync(query, timeout, 1);
+        } catch (IllegalArgumentException e) {
+            Log.warn("Invalid query \"{}\" in the query list: {}", query, e.getMessage());
+            if (measured) {
+                started.increment();
+                failed.increment();
+            }
+            return null;
+        }
+        // Only a search which was never sent completes without results before searchAsync returns.
+        if (search.isDone() && search.getNow(null).isEmpty()) {
+            if (measured) {
+                unsent.increment();
+            }
+            return null;
+        }
+        if (measured) {
+            started.increment();
+        }
+        outstanding.incrementAndGet();
+        search.whenComplete(new BiConsumer<List<SearchResult>, Throwable>() {
+            public void accept(List<SearchResult> results, Throwable error) {
+                long latencyNanos = System.nanoTime() - due;
+                outstanding.decrementAndGet();
+                if (!measured) {
+                    return;
+                }
+                if (error == null && !results.isEmpty()) {
+                    succeeded.increment();
+                    latencies.record(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+                } else {
+                    failed.increment();
+                }
+            }
+        });
+        return search;
+    }
+
+    private String nextQuery() {
+        double point = ThreadLocalRandom.current().nextDouble();
+        int low = 0;
+        int high = cumulativeWeights.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (cumulativeWeights[middle] < point) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return queries.get(low);
+    }
+
+    private void report(String mode, long duration) {
+        long total = started.sum();
+        long successes = succeeded.sum();
+        Log.flush();
+        System.out.println("========================= Benchmark ====================================");
+        System.out.println("Mode = " + mode + " | Duration = " + duration + " ms | Distinct queries = " + queries.size());
+        System.out.println("Started = " + total + " | Succeeded = " + successes + " | Failed = " + failed.sum()
+                + " | Success rate = " + String.format("%.1f", total == 0 ? 0.0 : 100.0 * successes / total) + " %"
+                + " | Not sent = " + unsent.sum());
+        System.out.println("Achieved QPS = " + String.format("%.1f", total * 1000.0 / duration)
+                + " | Successful QPS = " + String.format("%.1f", successes * 1000.0 / duration));
+        System.out.println("Latency to first result (us): " + latencies.snapshot());
+        System.out.println("========================================================================");
+    }
+}
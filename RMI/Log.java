@@ -0,0 +1,265 @@
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.FileDescriptor;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Leveled logging to the standard output, written by a background thread so that the threads handling messages
+ * never wait for the console.
+ * A message is only formatted when its level is enabled. Messages use {@code {}} placeholders which are replaced
+ * by the arguments in order. Formatting happens on the calling thread, since arguments such as a received
+ * {@link Message} are only valid until the call returns.
+ * Formatted lines are handed to the writer through a ring buffer. When the writer falls behind, lines which do
+ * not fit are dropped and their number is logged once there is room again.
+ */
+public final class Log {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    private static final Level LEVEL = parseLevel(Configuration.LOG_LEVEL);
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(1, Configuration.LOG_BUFFER_SIZE - 1)) << 1;
+    private static final PrintStream OUT = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 8192), false);
+    private static final AtomicReferenceArray<String> RING = new AtomicReferenceArray<String>(CAPACITY);
+    // Claimed by the logging threads, every line below the tail has been or is being written to the ring.
+    private static final AtomicLong TAIL = new AtomicLong();
+    // Only advanced by the writer thread.
+    private static final AtomicLong HEAD = new AtomicLong();
+    private static final AtomicLong DROPPED = new AtomicLong();
+    private static final Thread WRITER;
+    private static volatile boolean writerParked = false;
+
+    static {
+        if (Configuration.LOG_BUFFER_SIZE > 0) {
+            WRITER = new Thread(new Writer(), "log-writer");
+            WRITER.setDaemon(true);
+            WRITER.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            }, "log-flush"));
+        } else {
+            WRITER = null;
+        }
+    }
+
+    private Log() {
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0 && level != Level.OFF;
+    }
+
+    public static boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    public static void debug(String format) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, format, null, null);
+        }
+    }
+
+    public static void debug(String format, Object arg) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, format, new Object[]{arg}, null);
+        }
+    }
+
+    public static void debug(String format, Object arg1, Object arg2) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, format, new Object[]{arg1, arg2}, null);
+        }
+    }
+
+    public static void debug(String format, Object... args) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, format, args, null);
+        }
+    }
+
+    public static void info(String format) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, format, null, null);
+        }
+    }
+
+    public static void info(String format, Object arg) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, format, new Object[]{arg}, null);
+        }
+    }
+
+    public static void info(String format, Object arg1, Object arg2) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, format, new Object[]{arg1, arg2}, null);
+        }
+    }
+
+    public static void info(String format, Object... args) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, format, args, null);
+        }
+    }
+
+    public static void warn(String format) {
+        if (isEnabled(Level.WARN)) {
+            log(Level.WARN, format, null, null);
+        }
+    }
+
+    public static void warn(String format, Object arg) {
+        if (isEnabled(Level.WARN)) {
+            log(Level.WARN, format, new Object[]{arg}, null);
+        }
+    }
+
+    public static void warn(String format, Object arg1, Object arg2) {
+        if (isEnabled(Level.WARN)) {
+            log(Level.WARN, format, new Object[]{arg1, arg2}, null);
+        }
+    }
+
+    public static void warn(String format, Object... args) {
+        if (isEnabled(Level.WARN)) {
+            log(Level.WARN, format, args, null);
+        }
+    }
+
+    /**
+     * Logs an error with the stack trace of its cause.
+     */
+    public static void error(String message, Throwable cause) {
+        if (isEnabled(Level.ERROR)) {
+            log(Level.ERROR, message, null, cause);
+        }
+    }
+
+    /**
+     * @return number of lines dropped because the writer fell behind.
+     */
+    public static long getDropped() {
+        return DROPPED.get();
+    }
+
+    /**
+     * Waits until the lines logged so far have been written.
+     */
+    public static void flush() {
+        if (WRITER == null) {
+            return;
+        }
+        long target = TAIL.get();
+        while (HEAD.get() < target && WRITER.isAlive()) {
+            LockSupport.unpark(WRITER);
+            Thread.yield();
+        }
+        synchronized (OUT) {
+            OUT.flush();
+        }
+    }
+
+    private static void log(Level level, String format, Object[] args, Throwable cause) {
+        StringBuilder line = new StringBuilder(format.length() + 32);
+        line.append('[').append(level).append("] ").append(Thread.currentThread().getName()).append(" - ");
+        appendFormatted(line, format, args);
+        if (cause != null) {
+            StringWriter trace = new StringWriter();
+            cause.printStackTrace(new PrintWriter(trace));
+            line.append(System.lineSeparator()).append(trace.toString().trim());
+        }
+        if (WRITER == null) {
+            synchronized (OUT) {
+                OUT.println(line);
+                OUT.flush();
+            }
+            return;
+        }
+        offer(line.toString());
+    }
+
+    // replaces the placeholders in order, placeholders without an argument are kept
+    private static void appendFormatted(StringBuilder line, String format, Object[] args) {
+        int start = 0;
+        int argument = 0;
+        int placeholder;
+        while (args != null && argument < args.length && (placeholder = format.indexOf("{}", start)) >= 0) {
+            line.append(format, start, placeholder).append(args[argument++]);
+            start = placeholder + 2;
+        }
+        line.append(format, start, format.length());
+    }
+
+    private static void offer(String line) {
+        long tail;
+        do {
+            tail = TAIL.get();
+            if (tail - HEAD.get() >= CAPACITY) {
+                DROPPED.incrementAndGet();
+                return;
+            }
+        } while (!TAIL.compareAndSet(tail, tail + 1));
+        RING.set((int) (tail & (CAPACITY - 1)), line);
+        if (writerParked) {
+            LockSupport.unpark(WRITER);
+        }
+    }
+
+    private static Level parseLevel(String level) {
+        try {
+            return Level.valueOf(level.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown log level " + level + ", using INFO");
+            return Level.INFO;
+        }
+    }
+
+    /**
+     * Writes the lines of the ring buffer in the order they were claimed.
+     */
+    private static class Writer implements Runnable {
+
+        private long reportedDrops = 0;
+
+        public void run() {
+            while (true) {
+                long head = HEAD.get();
+                int slot = (int) (head & (CAPACITY - 1));
+                String line = RING.get(slot);
+                if (line != null) {
+                    RING.set(slot, null);
+                    HEAD.lazySet(head + 1);
+                    synchronized (OUT) {
+                        OUT.println(line);
+                    }
+                    continue;
+                }
+                if (head < TAIL.get()) {
+                    // The line is claimed but not yet stored.
+                    Thread.yield();
+                    continue;
+                }
+                long dropped = DROPPED.get();
+                synchronized (OUT) {
+                    if (dropped != reportedDrops) {
+                        OUT.println("[WARN] log-writer - " + (dropped - reportedDrops) + " log messages dropped");
+                        reportedDrops = dropped;
+                    }
+                    OUT.flush();
+                }
+                writerParked = true;
+                if (HEAD.get() == TAIL.get()) {
+                    LockSupport.parkNanos(100000000L);
+                }
+                writerParked = false;
+            }
+        }
+    }
+}
@@ -4,6 +4,7 @@
 public interface MessageReceivedEvent {
     boolean onJoin(NodeData nodeData);
     boolean onLeave(NodeData nodeData);
-    SearchResult onSearch(String query, NodeData queryNode, NodeData receivedNode);
+    SearchResult onSearch(String query, int hops, boolean walk, NodeData queryNode, NodeData receivedNode);
     void onSearchSuccess(SearchResult result);
+    void onCatalog(NodeData neighbor, BloomFilter catalog);
 }
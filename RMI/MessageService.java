@@ -8,13 +8,13 @@ public interface MessageService {
     boolean unregister(NodeData nodeData);
     boolean join(NodeData nodeData, NodeData neighbor);
     boolean leave(NodeData nodeData, NodeData neighbor);
-    void search(String filename, NodeData nodeData, NodeData neighbor);
+    void search(String filename, long queryId, int hops, boolean walk, NodeData nodeData, NodeData neighbor);
+    void cancel(long queryId, NodeData nodeData);
+    void publishCatalog(NodeData nodeData, NodeData neighbor, BloomFilter catalog);
 
     void startListening(MessageReceivedEvent receivedEvent);
     void stopListening();
 
-    int getReceivedQueries();
-    int getForwardedQueries();
-    int getAnsweredQueries();
+    MetricsRegistry getMetrics();
     void resetStatistics();
 }
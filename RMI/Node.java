@@ -1,26 +1,63 @@
 import java.io.*;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 /**
  * Created by Mirage on 2017-01-08.
  */
 public class Node implements MessageReceivedEvent {
 
+    private static final int QUERY_CACHE_SIZE = 256;
+
     private NodeData nodeData;
     private MessageService messageService;
-    private List<NodeData> neighbors;
+    private NeighbourTable neighbors;
     private List<String> fileNames = new ArrayList<String>();
-    private List<Integer> hopList = new ArrayList<Integer>();
-    private List<Integer> latencyList = new ArrayList<Integer>();
-    private long sendTime = 0;
+    private InvertedIndex fileIndex = new InvertedIndex(fileNames);
+    private Map<String, Query> queryCache = Collections.synchronizedMap(new QueryCache());
+    // Results may arrive on several receiving threads at once.
+    private Histogram hopHistogram = new Histogram();
+    private Histogram latencyHistogram = new Histogram();
+    private Histogram ringHistogram = new Histogram();
+    private ScheduledExecutorService statisticsReporter = null;
+    private InFlightQueryTable inFlightQueries = new InFlightQueryTable();
+    private RoutingTable routingTable;
+    // Summary of the file names of this node, null if summaries are turned off.
+    private BloomFilter catalog = null;
+    // Summaries received from the neighbours, keyed by NodeData.getKey().
+    private Map<Long, BloomFilter> neighborCatalogs = new ConcurrentHashMap<Long, BloomFilter>();
+    // Neighbours which have been sent the summary of this node.
+    private Set<Long> catalogPublished = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private LongAdder catalogMatches;
+    private LongAdder catalogSkips;
+    private LongAdder cancelledSearches;
 
     public Node(String ip, int port, String username) {
         nodeData = new NodeData(ip, port, username);
         messageService = new RMIMessageService();
-        neighbors = new ArrayList<NodeData>();
+        neighbors = new NeighbourTable();
+        routingTable = new RoutingTable(Configuration.ROUTING_TABLE_SIZE, Configuration.ROUTING_HALF_LIFE,
+                Configuration.ROUTING_EXPLORATION, messageService.getMetrics());
+        catalogMatches = messageService.getMetrics().counter("catalog.matches");
+        catalogSkips = messageService.getMetrics().counter("catalog.skips");
+        cancelledSearches = messageService.getMetrics().counter("searches.cancelled");
         loadFileNames();
     }
 
@@ -41,24 +78,28 @@ public class Node implements MessageReceivedEvent {
                 if (messageService.join(nodeData, randNeighbor)) {
                     neighbors.add(randNeighbor);
                 } else {
-                    System.out.println("Could not join to the neighbor at " + randNeighbor.getIP() + ":" + randNeighbor.getPort());
+                    Log.warn("Could not join to the neighbor at {}", randNeighbor);
                     failNeighborCount++;
                 }
             }
             // Re-register with bootstrap server to get new neighbours.
             if (receivedNeighborCount > 0 && failNeighborCount >= receivedNeighborCount) {
-                System.out.println("Failed to join any of the neighbors. Re-registering to request new neighbors.");
+                Log.warn("Failed to join any of the neighbors. Re-registering to request new neighbors.");
                 messageService.unregister(nodeData);
                 try {
                     Thread.sleep(2000);
                 } catch (InterruptedException e) {
-                    e.printStackTrace();
+                    Log.error("Interrupted while waiting to re-register", e);
                 }
             } else {
                 break;
             }
         } while (true);
         messageService.startListening(this);
+        publishCatalog();
+        if (Configuration.STATS_INTERVAL > 0) {
+            startStatisticsReporter();
+        }
     }
 
     /**
@@ -66,32 +107,86 @@ public class Node implements MessageReceivedEvent {
      */
     public void disconnect() {
 
+        if (statisticsReporter != null) {
+            statisticsReporter.shutdownNow();
+            statisticsReporter = null;
+        }
         messageService.stopListening();
         for (NodeData neighbor : neighbors) {
             messageService.leave(nodeData, neighbor);
         }
 
         messageService.unregister(nodeData);
+        inFlightQueries.shutdown();
 
     }
 
     /**
-     * Search the given file name within the network
+     * Search the given query within the network and print the results as they arrive.
      *
-     * @param filename name of the file.
+     * @param filename name of the file or a query such as {@code twilight OR "happy feet"}.
      */
     public void search(String filename) {
-        sendTime = System.currentTimeMillis();
-        List<NodeData> neighborsCopy = new ArrayList<NodeData>(neighbors);
-        Collections.shuffle(neighborsCopy);
-        List<NodeData> randNeighbors = neighborsCopy.subList(0, Math.min(2, neighbors.size()));
-        for (NodeData randNeighbor : randNeighbors) {
-            messageService.search(filename, nodeData, randNeighbor);
+        try {
+            searchAsync(filename, Configuration.QUERY_TIMEOUT, Integer.MAX_VALUE);
+        } catch (IllegalArgumentException e) {
+            Log.warn("Invalid query: {}", e.getMessage());
         }
+    }
+
+    /**
+     * Search the given query within the network without waiting for the results.
+     *
+     * @param filename   name of the file or a query such as {@code twilight OR "happy feet"}.
+     * @param timeout    time in milliseconds to wait for results.
+     * @param maxResults number of results after which the search completes early.
+     * @return future completed with the results once the search reached maxResults or its timeout.
+     * A search without results completes with an empty list.
+     * @throws IllegalArgumentException if the query is not valid.
+     */
+    public CompletableFuture<List<SearchResult>> searchAsync(String filename, long timeout, int maxResults) {
+        return searchAsync(filename, timeout, maxResults, null);
+    }
 
+    /**
+     * Search the given query within the network without waiting for the results.
+     * The query is parsed here and sent in its canonical form so that the receiving nodes do not have
+     * to deal with syntax errors.
+     * With the 'ring' search mode the query first goes to the neighbours only, and is sent again with one more
+     * hop whenever a ring brings no result within the ring timeout. With the 'walk' search mode the query is
+     * sent as a number of random walkers, each forwarded to a single neighbour at a time.
+     *
+     * @param filename       name of the file or a query such as {@code twilight OR "happy feet"}.
+     * @param timeout        time in milliseconds to wait for results.
+     * @param maxResults     number of results after which the search completes early.
+     * @param resultListener called on the receiving thread with each result as it arrives, may be null.
+     * @return future completed with the results once the search reached maxResults or its timeout.
+     * A search without results completes with an empty list.
+     * @throws IllegalArgumentException if the query is not valid.
+     */
+    public CompletableFuture<List<SearchResult>> searchAsync(String filename, long timeout, int maxResults,
+                                                             Consumer<SearchResult> resultListener) {
+        Query query = QueryParser.parse(filename);
+        // Random non zero id, shared by all copies of the query so that nodes can drop duplicates.
+        long queryId = newQueryId();
+        InFlightQuery inFlightQuery = inFlightQueries.start(queryId, query.toString(), timeout, maxResults, resultListener);
+        if (Configuration.SEARCH_MODE.equals("ring")) {
+            sendRing(inFlightQuery, query, queryId, 0);
+        } else if (Configuration.SEARCH_MODE.equals("walk")) {
+            sendWalkers(inFlightQuery, query, queryId);
+        } else {
+            List<NodeData> selectedNeighbors = selectNeighbors(query, Configuration.HOPS_MAX, 2);
+            if (selectedNeighbors.isEmpty()) {
+                inFlightQuery.complete();
+            } else {
+                send(inFlightQuery, query, queryId, Configuration.HOPS_MAX, false, selectedNeighbors);
+            }
+        }
+        return inFlightQuery.getCompletion();
     }
 
     public void printNeighbors() {
+        Log.flush();
         for (NodeData neighbor : neighbors) {
             System.out.println("Neighbor Node " + neighbor.getIP() + " : " + neighbor.getPort());
         }
@@ -99,6 +194,7 @@ public class Node implements MessageReceivedEvent {
     }
 
     public void printFileNames() {
+        Log.flush();
         for (String fileName : fileNames) {
             System.out.println(fileName);
         }
@@ -113,11 +209,7 @@ public class Node implements MessageReceivedEvent {
      */
     public boolean onJoin(NodeData nodeData) {
 
-        if (!neighbors.contains(nodeData)) {
-            neighbors.add(nodeData);
-            return true;
-        }
-        return false;
+        return neighbors.add(nodeData);
     }
 
     /**
@@ -127,6 +219,8 @@ public class Node implements MessageReceivedEvent {
      * @return Must return true if deletion from the neighbour table was successful.
      */
     public boolean onLeave(NodeData nodeData) {
+        neighborCatalogs.remove(nodeData.getKey());
+        catalogPublished.remove(nodeData.getKey());
         return neighbors.remove(nodeData);
     }
 
@@ -134,26 +228,26 @@ public class Node implements MessageReceivedEvent {
      * Callback when search query is received.
      *
      * @param query        search query
+     * @param hops         remaining hops of the query, it is only forwarded while they are above 0.
+     * @param walk         true if the query is a random walker, which is forwarded to a single neighbour.
      * @param queryNode    data of the searching node.
      * @param receivedNode data of the  node that the packet received..
      * @return Search result indicating the details.
      */
-    public SearchResult onSearch(String query, NodeData queryNode, NodeData receivedNode) {
+    public SearchResult onSearch(String query, int hops, boolean walk, NodeData queryNode, NodeData receivedNode) {
 
-        System.out.println("Search request | Query node " + queryNode.toString()
-                + " | Received node " + receivedNode.toString() + " | Filename \"" + query + "\"");
+        Log.debug("Search request | Query node {} | Received node {} | Filename \"{}\"", queryNode, receivedNode, query);
 
         SearchResult result = new SearchResult();
         result.setOwnerNode(nodeData);
 
-        List<String> matchingFileNames = new ArrayList<String>();
-
-        for (String fileName : fileNames) {
-            if (fileName.toLowerCase().matches(".*\\b" + query.toLowerCase() + "\\b.*")) {
-                matchingFileNames.add(fileName);
-                System.out.println("File \"" + fileName + "\" matched with query \"" + query + "\"");
-            }
+        Query parsedQuery = parseQuery(query);
+        // A walker passing the searching node again only moves on.
+        List<String> matchingFileNames = walk && nodeData.equals(queryNode) ? Collections.<String>emptyList()
+                : fileIndex.search(parsedQuery);
 
+        for (String fileName : matchingFileNames) {
+            Log.debug("File \"{}\" matched with query \"{}\"", fileName, query);
         }
 
         if (matchingFileNames.size() > 0) {
@@ -162,11 +256,16 @@ public class Node implements MessageReceivedEvent {
             return result;
         } else {
             result.setSuccess(false);
-            List<NodeData> neighborsCopy = new ArrayList<NodeData>(neighbors);
-            neighborsCopy.remove(queryNode);
-            neighborsCopy.remove(receivedNode);
-            Collections.shuffle(neighborsCopy);
-            result.setSelectedNeighbours(neighborsCopy.subList(0, Math.min(2, neighborsCopy.size())));
+            if (hops <= 0) {
+                result.setSelectedNeighbours(Collections.<NodeData>emptyList());
+            } else if (walk) {
+                List<NodeData> selectedNeighbors = selectNeighbors(parsedQuery, hops - 1, 1, queryNode, receivedNode);
+                // A walker at a dead end goes back rather than dying.
+                result.setSelectedNeighbours(selectedNeighbors.isEmpty() ? selectNeighbors(parsedQuery, hops - 1, 1)
+                        : selectedNeighbors);
+            } else {
+                result.setSelectedNeighbours(selectNeighbors(parsedQuery, hops - 1, 2, queryNode, receivedNode));
+            }
 
             return result;
         }
@@ -179,16 +278,230 @@ public class Node implements MessageReceivedEvent {
      * @param result search result indicating node details of the owner and matching file names.
      */
     public void onSearchSuccess(SearchResult result) {
-        long elapsed = System.currentTimeMillis() - sendTime;
+        // Looked up first, a result which completes the query also removes it.
+        InFlightQuery inFlightQuery = result.getQueryId() != 0 ? inFlightQueries.get(result.getQueryId()) : null;
+        if (inFlightQuery != null && inFlightQuery.getHops(result.getQueryId()) >= 0) {
+            // Rings of an expanding ring search are sent with fewer hops than the maximum.
+            result.setHopCount(inFlightQuery.getHops(result.getQueryId()) - result.getRemainingHops());
+        }
+        long elapsedNanos = inFlightQueries.onResult(result);
+        if (inFlightQuery != null) {
+            learnRoute(inFlightQuery, result);
+            if (Configuration.CANCEL_RESULTS >= 0 && inFlightQuery.markSatisfied(Configuration.CANCEL_RESULTS > 0
+                    ? Math.min(Configuration.CANCEL_RESULTS, inFlightQuery.getMaxResults()) : inFlightQuery.getMaxResults())) {
+                cancel(inFlightQuery);
+            }
+        }
         List<String> files = result.getMatchingFileNames();
         for (String fileName : files) {
-            System.out.println(fileName);
+            Log.info("{}", fileName);
+        }
+        if (elapsedNanos < 0) {
+            Log.info("Hop Count = {}. Result arrived after the query expired.", result.getHopCount());
+            return;
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMicros(elapsedNanos);
+        Log.info("Hop Count = {}. Latency = {} ms", result.getHopCount(), elapsed / 1000.0);
+        hopHistogram.record(result.getHopCount());
+        latencyHistogram.record(elapsed);
+        if (Configuration.SEARCH_MODE.equals("ring") && inFlightQuery != null && inFlightQuery.isFirstResult(result)) {
+            ringHistogram.record(inFlightQuery.getRing(result.getQueryId()));
+        }
+    }
+
+
+    /**
+     * Callback when a neighbour publishes the summary of its file names.
+     *
+     * @param neighbor data of the neighbour.
+     * @param catalog  Bloom filter of the terms in the file names of the neighbour.
+     */
+    public void onCatalog(NodeData neighbor, BloomFilter catalog) {
+        if (this.catalog == null || !neighbors.contains(neighbor)) {
+            Log.debug("Ignoring the catalog of {}", neighbor);
+            return;
+        }
+        Log.debug("Catalog of {} received, {} bits", neighbor, catalog.getBitCount());
+        neighborCatalogs.put(neighbor.getKey(), catalog);
+        // A new neighbour gets the summary of this node in return.
+        if (catalogPublished.add(neighbor.getKey())) {
+            messageService.publishCatalog(nodeData, neighbor, this.catalog);
+        }
+    }
+
+    // picks up to count neighbours to send a query to, the receivers get the given number of hops
+    private List<NodeData> selectNeighbors(Query query, int hops, int count, NodeData... excluded) {
+        Collection<String> terms = terms(query);
+        if (neighborCatalogs.isEmpty()) {
+            return routingTable.select(terms, neighbors, count, excluded);
+        }
+        List<NodeData> matching = new ArrayList<NodeData>();
+        List<NodeData> unknown = new ArrayList<NodeData>();
+        int skipped = 0;
+        for (NodeData neighbor : neighbors) {
+            if (isExcluded(neighbor, excluded)) {
+                continue;
+            }
+            BloomFilter neighborCatalog = neighborCatalogs.get(neighbor.getKey());
+            if (neighborCatalog == null) {
+                unknown.add(neighbor);
+            } else if (query.mightMatch(neighborCatalog)) {
+                matching.add(neighbor);
+            } else {
+                skipped++;
+            }
+        }
+        // Neighbours which hold a match answer straight away.
+        if (!matching.isEmpty()) {
+            catalogMatches.increment();
+            return routingTable.select(terms, matching, count);
+        }
+        // The query may still find a match beyond the neighbours.
+        if (hops > 0) {
+            return routingTable.select(terms, neighbors, count, excluded);
+        }
+        catalogSkips.add(skipped);
+        return routingTable.select(terms, unknown, count);
+    }
+
+    // publishes the summary of this node to the neighbours which have not been sent it
+    private void publishCatalog() {
+        if (catalog == null) {
+            return;
+        }
+        for (NodeData neighbor : neighbors) {
+            if (catalogPublished.add(neighbor.getKey())) {
+                messageService.publishCatalog(nodeData, neighbor, catalog);
+            }
+        }
+    }
+
+    // summary of the terms in the file names
+    private static BloomFilter buildCatalog(List<String> fileNames) {
+        Set<String> terms = new HashSet<String>();
+        for (String fileName : fileNames) {
+            terms.addAll(InvertedIndex.tokenize(fileName));
+        }
+        BloomFilter catalog = new BloomFilter(terms.size(), Configuration.CATALOG_FALSE_POSITIVE_RATE);
+        for (String term : terms) {
+            catalog.add(term);
+        }
+        return catalog;
+    }
+
+    private static boolean isExcluded(NodeData node, NodeData[] excluded) {
+        for (NodeData excludedNode : excluded) {
+            if (node.equals(excludedNode)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // sends one ring of an expanding ring search, the next larger ring follows if this one brings no result in time
+    private void sendRing(final InFlightQuery inFlightQuery, final Query query, long queryId, final int hops) {
+        boolean lastRing = hops >= Configuration.RING_HOPS_MAX;
+        List<NodeData> selectedNeighbors = selectNeighbors(query, hops, 2);
+        if (selectedNeighbors.isEmpty()) {
+            // No neighbour is worth asking at this distance.
+            if (lastRing) {
+                inFlightQuery.complete();
+            } else {
+                sendRing(inFlightQuery, query, newQueryId(), hops + 1);
+            }
+            return;
+        }
+        send(inFlightQuery, query, queryId, hops, false, selectedNeighbors);
+        if (lastRing) {
+            return;
+        }
+        inFlightQueries.schedule(new Runnable() {
+            public void run() {
+                if (!inFlightQuery.getCompletion().isDone() && inFlightQuery.getResultCount() == 0) {
+                    Log.debug("No result for \"{}\" within {} hops, widening the search", inFlightQuery.getQuery(), hops);
+                    sendRing(inFlightQuery, query, newQueryId(), hops + 1);
+                }
+            }
+        }, Configuration.RING_TIMEOUT);
+    }
+
+    // sends the walkers of a search, spread over the best neighbours, each with its own id
+    private void sendWalkers(InFlightQuery inFlightQuery, Query query, long queryId) {
+        List<NodeData> selectedNeighbors = selectNeighbors(query, Configuration.WALK_HOPS, Configuration.WALKERS);
+        if (selectedNeighbors.isEmpty()) {
+            inFlightQuery.complete();
+            return;
+        }
+        for (int i = 0; i < Configuration.WALKERS; i++) {
+            NodeData selectedNeighbor = selectedNeighbors.get(i % selectedNeighbors.size());
+            send(inFlightQuery, query, i == 0 ? queryId : newQueryId(), Configuration.WALK_HOPS, true,
+                    Collections.singletonList(selectedNeighbor));
+        }
+    }
+
+    // sends the query to the selected neighbours with the given id and hops
+    private void send(InFlightQuery inFlightQuery, Query query, long queryId, int hops, boolean walk,
+                      List<NodeData> selectedNeighbors) {
+        inFlightQueries.addSend(inFlightQuery, queryId, hops, selectedNeighbors);
+        for (NodeData selectedNeighbor : selectedNeighbors) {
+            messageService.search(query.toString(), queryId, hops, walk, nodeData, selectedNeighbor);
+        }
+    }
+
+    // stops the copies of a satisfied query which are still on their way
+    private void cancel(InFlightQuery inFlightQuery) {
+        Log.debug("Enough results for \"{}\", cancelling it", inFlightQuery.getQuery());
+        cancelledSearches.increment();
+        for (long queryId : inFlightQuery.getQueryIds()) {
+            messageService.cancel(queryId, nodeData);
+        }
+    }
+
+    private static long newQueryId() {
+        long queryId;
+        do {
+            queryId = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+        } while (queryId == 0);
+        return queryId;
+    }
+
+    // credits the neighbours whose paths answered a query of this node
+    private void learnRoute(InFlightQuery inFlightQuery, SearchResult result) {
+        Collection<String> terms = terms(parseQuery(inFlightQuery.getQuery()));
+        NodeData owner = result.getOwnerNode();
+        if (neighbors.contains(owner)) {
+            routingTable.reward(terms, owner, 1);
+            return;
         }
-        System.out.println("Hop Count = " + result.getHopCount() + ". Latency = " + elapsed + " ms");
-        hopList.add(result.getHopCount());
-        latencyList.add((int) elapsed);
+        // Results go straight to this node, so the first hops of the answered id share the credit. A walker
+        // has a single first hop, a flooded id the two neighbours it was sent to.
+        List<NodeData> sentTo = inFlightQuery.getNeighbours(result.getQueryId());
+        for (NodeData neighbor : sentTo) {
+            routingTable.reward(terms, neighbor, 1.0 / sentTo.size());
+        }
+    }
+
+    // distinct terms of the query, used as routing keys
+    private static Collection<String> terms(Query query) {
+        Collection<String> terms = new LinkedHashSet<String>();
+        query.collectTerms(terms);
+        return terms;
     }
 
+    // parses a received query, reusing the result for queries seen recently.
+    private Query parseQuery(String query) {
+        Query parsedQuery = queryCache.get(query);
+        if (parsedQuery == null) {
+            try {
+                parsedQuery = QueryParser.parse(query);
+            } catch (IllegalArgumentException e) {
+                // Queries from older nodes are plain phrases which may not follow the query syntax.
+                parsedQuery = new Query.Phrase(InvertedIndex.tokenize(query));
+            }
+            queryCache.put(query, parsedQuery);
+        }
+        return parsedQuery;
+    }
 
     // loads the file names list from the file given in the configuration.
     private void loadFileNames() {
@@ -204,22 +517,24 @@ public class Node implements MessageReceivedEvent {
             }
             Collections.shuffle(fileNames);
             fileNames = fileNames.subList(0, Math.min((int) Math.round((2 * Math.random()) + 3), fileNames.size()));
+            fileIndex = new InvertedIndex(fileNames);
+            if (Configuration.CATALOG_FALSE_POSITIVE_RATE > 0) {
+                catalog = buildCatalog(fileNames);
+            }
             bufferedReader.close();
             fileInputStream.close();
         } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            Log.error("Could not find the file list", e);
         } catch (URISyntaxException e) {
-            e.printStackTrace();
+            Log.error("Could not locate the file list", e);
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("Could not read the file list", e);
         }
     }
 
-    // run the test benchmark
+    // run the load generator with the queries of the query list
     void runBenchmark() {
         try {
-            System.out.println("==========================================================");
-            System.out.println("Benchmark started.");
             FileInputStream fileInputStream = new FileInputStream(Main.class.getProtectionDomain().getCodeSource().getLocation().toURI().getSchemeSpecificPart()
                     + Configuration.QUERIES_PATH);
             BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(fileInputStream));
@@ -227,90 +542,102 @@ public class Node implements MessageReceivedEvent {
             String line = bufferedReader.readLine();
             List<String> queriesList = new ArrayList<String>();
             while (line != null) {
-                queriesList.add(line);
+                if (!line.trim().isEmpty()) {
+                    queriesList.add(line);
+                }
                 line = bufferedReader.readLine();
             }
             bufferedReader.close();
             fileInputStream.close();
 
-            for (String query : queriesList) {
-                this.search(query);
-                Thread.sleep(Configuration.BENCHMARK_TIMEOUT);
+            Log.info("Benchmark started.");
+            LoadGenerator loadGenerator = new LoadGenerator(this, queriesList, Configuration.BENCHMARK_ZIPF);
+            if (Configuration.BENCHMARK_MODE.equals("open")) {
+                loadGenerator.runOpenLoop(Configuration.BENCHMARK_RATE, Configuration.BENCHMARK_DURATION, Configuration.BENCHMARK_WARMUP,
+                        Configuration.BENCHMARK_TIMEOUT);
+            } else {
+                loadGenerator.runClosedLoop(Configuration.BENCHMARK_CLIENTS, Configuration.BENCHMARK_DURATION,
+                        Configuration.BENCHMARK_WARMUP, Configuration.BENCHMARK_TIMEOUT);
             }
-            System.out.println("Benchmark finished.");
-            System.out.println("==========================================================");
+            Log.info("Benchmark finished.");
 
         } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            Log.error("Could not find the query list", e);
         } catch (URISyntaxException e) {
-            e.printStackTrace();
+            Log.error("Could not locate the query list", e);
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("Could not read the query list", e);
+        } catch (IllegalArgumentException e) {
+            Log.warn("Could not run the benchmark: {}", e.getMessage());
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            Log.error("Benchmark interrupted", e);
         }
     }
 
 
     void printQueryStatistics() {
-        System.out.println("Received Queries = " + messageService.getReceivedQueries());
-        System.out.println("Forwarded Queries = " + messageService.getForwardedQueries());
-        System.out.println("Answered Queries = " + messageService.getAnsweredQueries());
+        Log.flush();
+        System.out.println("========================== Metrics =====================================");
+        // Most message types are never seen by a node, only the metrics with a value are listed.
+        for (Map.Entry<String, Long> metric : messageService.getMetrics().snapshot().entrySet()) {
+            if (metric.getValue() != 0) {
+                System.out.println(metric.getKey() + " = " + metric.getValue());
+            }
+        }
         System.out.println("=========================== Hops =======================================");
-        System.out.println("MIN = " + min(hopList) + " | MAX = " + max(hopList) + " | AVG = " + average(hopList) + " | STD = " + std(hopList));
-        System.out.println("======================== Latency (ms) ==================================");
-        System.out.println("MIN = " + min(latencyList) + " | MAX = " + max(latencyList) + " | AVG = " + average(latencyList) + " | STD = " + std(latencyList));
+        System.out.println(hopHistogram.snapshot());
+        System.out.println("======================== Latency (us) ==================================");
+        System.out.println(latencyHistogram.snapshot());
+        if (Configuration.SEARCH_MODE.equals("ring")) {
+            System.out.println("======================== Answering ring ================================");
+            System.out.println(ringHistogram.snapshot());
+        }
         System.out.println("========================================================================");
 
     }
 
     void resetStatistics() {
         messageService.resetStatistics();
-        hopList.clear();
-        latencyList.clear();
-        System.out.println("Statistics reset complete.");
+        hopHistogram.reset();
+        latencyHistogram.reset();
+        ringHistogram.reset();
+        Log.info("Statistics reset complete.");
     }
 
-    private int min(List<Integer> numberList) {
-        int min = Integer.MAX_VALUE;
-        for (int number : numberList) {
-            if (min > number) {
-                min = number;
+    // prints the hops and latencies of the results received in each interval
+    private void startStatisticsReporter() {
+        statisticsReporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "statistics-reporter");
+                thread.setDaemon(true);
+                return thread;
             }
-        }
-        return min;
-    }
-
-    private int max(List<Integer> numberList) {
-        int max = Integer.MIN_VALUE;
-        for (int number : numberList) {
-            if (max < number) {
-                max = number;
+        });
+        statisticsReporter.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                Log.info("Interval Hops: {}", hopHistogram.intervalSnapshot());
+                Log.info("Interval Latency (us): {}", latencyHistogram.intervalSnapshot());
+                if (Configuration.SEARCH_MODE.equals("ring")) {
+                    Log.info("Interval Answering ring: {}", ringHistogram.intervalSnapshot());
+                }
             }
-        }
-        return max;
+        }, Configuration.STATS_INTERVAL, Configuration.STATS_INTERVAL, TimeUnit.MILLISECONDS);
     }
 
-    private float average(List<Integer> numberList) {
-        if (numberList.size() == 0) {
-            return 0.0f;
-        }
-        int sum = 0;
-        for (int number : numberList) {
-            sum += number;
-        }
-        return ((float) sum) / numberList.size();
-    }
+    /**
+     * Parsed query cache which evicts the least recently used entry.
+     */
+    private static class QueryCache extends LinkedHashMap<String, Query> {
+
+        private static final long serialVersionUID = 1L;
 
-    private double std(List<Integer> numberList) {
-        if (numberList.size() == 0) {
-            return 0.0d;
+        QueryCache() {
+            super(16, 0.75f, true);
         }
-        float mean = average(numberList);
-        double squareSum = 0.0d;
-        for (int number : numberList) {
-            squareSum += Math.pow((number - mean), 2);
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Query> eldest) {
+            return size() > QUERY_CACHE_SIZE;
         }
-        return Math.sqrt(squareSum / numberList.size());
     }
-}
+}
\ No newline at end of file
@@ -1,3 +1,5 @@
+import java.net.InetSocketAddress;
+
 /**
  * Created by Mirage on 2017-01-08.
  */
@@ -5,11 +7,19 @@ public class NodeData {
     private String ip;
     private int port;
     private String username;
+    private long key;
+    private volatile InetSocketAddress socketAddress;
 
+    /**
+     * @param ip   dotted IPv4 address of the node, the protocol does not carry host names.
+     * @param port port of the node.
+     * @throws IllegalArgumentException if the address is not an IPv4 literal or the port is out of range.
+     */
     public NodeData(String ip, int port, String username) {
         this.ip = ip;
         this.port = port;
         this.username = username;
+        this.key = key(ip, port);
     }
 
     public String getIP() {
@@ -24,6 +34,24 @@ public class NodeData {
         return this.port;
     }
 
+    /**
+     * @return IPv4 address and port packed as {@code (address << 16) | port}, so that no two nodes share a key.
+     */
+    public long getKey() {
+        return this.key;
+    }
+
+    /**
+     * @return resolved address of the node, null until a message service resolved it.
+     */
+    public InetSocketAddress getSocketAddress() {
+        return this.socketAddress;
+    }
+
+    public void setSocketAddress(InetSocketAddress socketAddress) {
+        this.socketAddress = socketAddress;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == null) {
@@ -34,14 +62,76 @@ public class NodeData {
         }
         final NodeData otherNode = (NodeData) obj;
 
-        if (this.ip.equals(otherNode.getIP()) && this.port == otherNode.getPort()) {
-            return true;
-        }
-        return false;
+        // The key holds the whole address, also of addresses written with leading zeros.
+        return this.key == otherNode.key;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (this.key ^ (this.key >>> 32));
     }
 
     @Override
     public String toString() {
         return this.ip + ":" + this.port;
     }
+
+    /**
+     * @return key of the node with the given address, see {@link #getKey()}.
+     * @throws IllegalArgumentException if the address is not an IPv4 literal or the port is out of range.
+     */
+    public static long key(String ip, int port) {
+        long ipv4 = parseIPv4(ip);
+        if (ipv4 < 0) {
+            throw new IllegalArgumentException("Not an IPv4 address: " + ip);
+        }
+        if (!isPort(port)) {
+            throw new IllegalArgumentException("Port out of range: " + port);
+        }
+        return (ipv4 << 16) | port;
+    }
+
+    /**
+     * @return true if the port is a valid UDP or TCP port number.
+     */
+    public static boolean isPort(int port) {
+        return port >= 0 && port <= 0xFFFF;
+    }
+
+    /**
+     * Packs a dotted IPv4 literal in to the lower 32 bits of a long.
+     *
+     * @param ip IP address.
+     * @return packed address, -1 if the address is not an IPv4 literal.
+     */
+    public static long parseIPv4(String ip) {
+        return parseIPv4(ip, 0, ip.length());
+    }
+
+    /**
+     * Packs the dotted IPv4 literal between the offsets in to the lower 32 bits of a long.
+     *
+     * @return packed address, -1 if the characters are not an IPv4 literal.
+     */
+    public static long parseIPv4(CharSequence text, int start, int end) {
+        long address = 0;
+        int octet = -1;
+        int dots = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                octet = (octet < 0 ? 0 : octet * 10) + (c - '0');
+                if (octet > 255) {
+                    return -1;
+                }
+            } else if (c == '.' && octet >= 0 && dots < 3) {
+                address = (address << 8) | octet;
+                octet = -1;
+                dots++;
+            } else {
+                return -1;
+            }
+        }
+        return dots == 3 && octet >= 0 ? (address << 8) | octet : -1;
+    }
 }
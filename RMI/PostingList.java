@@ -0,0 +1,153 @@
+import java.util.Arrays;
+
+/**
+ * Sorted list of file ids that contain a particular term.
+ * Every skip'th entry acts as a skip pointer so that intersections can jump over
+ * runs of ids that cannot match.
+ */
+public class PostingList {
+
+    public static final PostingList EMPTY = new PostingList(new int[0], 0);
+
+    private final int[] ids;
+    private final int size;
+    private final int skip;
+
+    PostingList(int[] ids, int size) {
+        this.ids = ids;
+        this.size = size;
+        this.skip = Math.max(1, (int) Math.sqrt(size));
+    }
+
+    /**
+     * Creates a posting list containing every id from 0 to size - 1.
+     *
+     * @param size number of files.
+     * @return posting list of all the files.
+     */
+    public static PostingList all(int size) {
+        int[] ids = new int[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = i;
+        }
+        return new PostingList(ids, size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int get(int index) {
+        return ids[index];
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(ids, size);
+    }
+
+    /**
+     * Intersects two posting lists using the skip pointers of both lists.
+     *
+     * @param other posting list to intersect with.
+     * @return posting list containing the ids present in both lists.
+     */
+    public PostingList intersect(PostingList other) {
+        int[] result = new int[Math.min(size, other.size)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < size && j < other.size) {
+            if (ids[i] == other.ids[j]) {
+                result[count++] = ids[i];
+                i++;
+                j++;
+            } else if (ids[i] < other.ids[j]) {
+                i = advance(i, other.ids[j]);
+            } else {
+                j = other.advance(j, ids[i]);
+            }
+        }
+        return new PostingList(result, count);
+    }
+
+    /**
+     * Merges two posting lists.
+     *
+     * @param other posting list to merge with.
+     * @return posting list containing the ids present in either list.
+     */
+    public PostingList union(PostingList other) {
+        int[] result = new int[size + other.size];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < size || j < other.size) {
+            if (j == other.size || (i < size && ids[i] < other.ids[j])) {
+                result[count++] = ids[i++];
+            } else if (i == size || other.ids[j] < ids[i]) {
+                result[count++] = other.ids[j++];
+            } else {
+                result[count++] = ids[i];
+                i++;
+                j++;
+            }
+        }
+        return new PostingList(result, count);
+    }
+
+    /**
+     * Removes the ids of another posting list from this list.
+     *
+     * @param other posting list of the ids to exclude.
+     * @return posting list containing the ids present only in this list.
+     */
+    public PostingList difference(PostingList other) {
+        int[] result = new int[size];
+        int count = 0;
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            if (j < other.size && other.ids[j] < ids[i]) {
+                j = other.advance(j, ids[i]);
+            }
+            if (j == other.size || other.ids[j] != ids[i]) {
+                result[count++] = ids[i];
+            }
+        }
+        return new PostingList(result, count);
+    }
+
+    // Moves forward from the given position to the first id that is not less than the target.
+    private int advance(int position, int target) {
+        while (position < size && ids[position] < target) {
+            if (position % skip == 0 && position + skip < size && ids[position + skip] <= target) {
+                position += skip;
+            } else {
+                position++;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Builder that collects ids in ascending order.
+     */
+    static class Builder {
+        private int[] ids = new int[4];
+        private int size = 0;
+
+        // ids must be added in ascending order, repeated ids are ignored.
+        void add(int id) {
+            if (size > 0 && ids[size - 1] == id) {
+                return;
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        PostingList build() {
+            return new PostingList(Arrays.copyOf(ids, size), size);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Parsed search query which is evaluated against the posting lists of an {@link InvertedIndex}.
+ * The string form of a query is its canonical representation, which is what gets sent over the
+ * network. It contains no quotes so it stays intact inside the quoted file name field of SER,
+ * and a plain phrase is sent exactly as older nodes expect it.
+ */
+public abstract class Query {
+
+    /**
+     * Evaluates the query against the index.
+     *
+     * @param index index of the local file names.
+     * @return posting list of the matching files.
+     */
+    public abstract PostingList evaluate(InvertedIndex index);
+
+    /**
+     * Adds the terms a matching file name may contain. Terms under NOT are left out and prefixes are added
+     * with their trailing '*'.
+     *
+     * @param terms collection the terms are added to.
+     */
+    public abstract void collectTerms(Collection<String> terms);
+
+    /**
+     * Tells whether a node may hold a matching file, judging by the summary of its catalog. Prefixes and
+     * negated operands can not be told from the summary and are assumed to match.
+     *
+     * @param catalog Bloom filter of the terms in the file names of the node.
+     * @return false if the node definitely has no matching file.
+     */
+    public abstract boolean mightMatch(BloomFilter catalog);
+
+    /**
+     * Consecutive terms which must appear next to each other. A single term is a phrase of length one.
+     */
+    public static class Phrase extends Query {
+        private final String[] terms;
+
+        public Phrase(List<String> terms) {
+            this.terms = terms.toArray(new String[terms.size()]);
+        }
+
+        public PostingList evaluate(InvertedIndex index) {
+            return index.matchPhrase(terms);
+        }
+
+        public void collectTerms(Collection<String> terms) {
+            Collections.addAll(terms, this.terms);
+        }
+
+        public boolean mightMatch(BloomFilter catalog) {
+            for (String term : terms) {
+                if (!catalog.mightContain(term)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (String term : terms) {
+                if (builder.length() > 0) {
+                    builder.append(' ');
+                }
+                builder.append(term);
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * Matches every term which starts with the given prefix.
+     */
+    public static class Prefix extends Query {
+        private final String prefix;
+
+        public Prefix(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public PostingList evaluate(InvertedIndex index) {
+            return index.matchPrefix(prefix);
+        }
+
+        public void collectTerms(Collection<String> terms) {
+            terms.add(prefix + "*");
+        }
+
+        public boolean mightMatch(BloomFilter catalog) {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return prefix + "*";
+        }
+    }
+
+    /**
+     * Matches files which are matched by all the operands. Negated operands are subtracted
+     * from the intersection of the others instead of being evaluated on their own.
+     */
+    public static class And extends Query {
+        private final List<Query> operands;
+
+        public And(List<Query> operands) {
+            this.operands = new ArrayList<Query>(operands);
+        }
+
+        public PostingList evaluate(InvertedIndex index) {
+            List<PostingList> included = new ArrayList<PostingList>();
+            List<Query> excluded = new ArrayList<Query>();
+            for (Query operand : operands) {
+                if (operand instanceof Not) {
+                    excluded.add(((Not) operand).operand);
+                } else {
+                    PostingList postingList = operand.evaluate(index);
+                    if (postingList.size() == 0) {
+                        return PostingList.EMPTY;
+                    }
+                    included.add(postingList);
+                }
+            }
+
+            PostingList result;
+            if (included.isEmpty()) {
+                result = PostingList.all(index.size());
+            } else {
+                Collections.sort(included, new Comparator<PostingList>() {
+                    public int compare(PostingList a, PostingList b) {
+                        return a.size() - b.size();
+                    }
+                });
+                result = included.get(0);
+                for (int i = 1; i < included.size() && result.size() > 0; i++) {
+                    result = result.intersect(included.get(i));
+                }
+            }
+            for (int i = 0; i < excluded.size() && result.size() > 0; i++) {
+                result = result.difference(excluded.get(i).evaluate(index));
+            }
+            return result;
+        }
+
+        public void collectTerms(Collection<String> terms) {
+            for (Query operand : operands) {
+                operand.collectTerms(terms);
+            }
+        }
+
+        public boolean mightMatch(BloomFilter catalog) {
+            for (Query operand : operands) {
+                if (!operand.mightMatch(catalog)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return join(operands, " AND ");
+        }
+    }
+
+    /**
+     * Matches files which are matched by any of the operands.
+     */
+    public static class Or extends Query {
+        private final List<Query> operands;
+
+        public Or(List<Query> operands) {
+            this.operands = new ArrayList<Query>(operands);
+        }
+
+        public PostingList evaluate(InvertedIndex index) {
+            PostingList result = PostingList.EMPTY;
+            for (Query operand : operands) {
+                result = result.union(operand.evaluate(index));
+            }
+            return result;
+        }
+
+        public void collectTerms(Collection<String> terms) {
+            for (Query operand : operands) {
+                operand.collectTerms(terms);
+            }
+        }
+
+        public boolean mightMatch(BloomFilter catalog) {
+            for (Query operand : operands) {
+                if (operand.mightMatch(catalog)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return join(operands, " OR ");
+        }
+    }
+
+    /**
+     * Matches files which are not matched by the operand.
+     */
+    public static class Not extends Query {
+        private final Query operand;
+
+        public Not(Query operand) {
+            this.operand = operand;
+        }
+
+        public PostingList evaluate(InvertedIndex index) {
+            return PostingList.all(index.size()).difference(operand.evaluate(index));
+        }
+
+        public void collectTerms(Collection<String> terms) {
+            // A file name matching a negated term is never an answer.
+        }
+
+        public boolean mightMatch(BloomFilter catalog) {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "NOT " + operand;
+        }
+    }
+
+    private static String join(List<Query> operands, String operator) {
+        StringBuilder builder = new StringBuilder("(");
+        for (int i = 0; i < operands.size(); i++) {
+            if (i > 0) {
+                builder.append(operator);
+            }
+            builder.append(operands.get(i));
+        }
+        return builder.append(')').toString();
+    }
+}
@@ -1,5 +1,6 @@
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.rmi.AlreadyBoundException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
@@ -9,6 +10,7 @@ import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Created by Mirage on 2017-01-08.
@@ -16,15 +18,36 @@ import java.util.StringTokenizer;
 
 /**
  * Java RMI implementation of the communication.
+ * Remote calls are counted in the metrics under the names of the matching UDP messages, a search batch counts
+ * once per search. Only the datagrams exchanged with the bootstrap server are counted in bytes, the RMI runtime
+ * does not tell the size of its calls.
  */
 public class RMIMessageService implements MessageService {
 
 
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final BufferPool bufferPool = new BufferPool(Configuration.BUFFER_POOL_SIZE, Configuration.DATAGRAM_SIZE, false, metrics);
     private DatagramSocket socket = null;
     private RemoteMethodServer remoteMethodServer = null;
-    private int receivedQueries = 0;
-    private int forwardedQueries = 0;
-    private int answeredQueries = 0;
+    private final LongAdder receivedQueries = metrics.counter("queries.received");
+    private final LongAdder forwardedQueries = metrics.counter("queries.forwarded");
+    private final LongAdder answeredQueries = metrics.counter("queries.answered");
+    private final LongAdder duplicateQueries = metrics.counter("queries.duplicate");
+    private final LongAdder cancelledQueries = metrics.counter("queries.cancelled");
+    private final LongAdder searchesIn = metrics.counter("messages.in.SER");
+    private final LongAdder searchesOut = metrics.counter("messages.out.SER");
+    private final LongAdder answersIn = metrics.counter("messages.in.SEROK");
+    private final LongAdder answersOut = metrics.counter("messages.out.SEROK");
+    private final LongAdder bytesIn = metrics.counter("bytes.in");
+    private final LongAdder bytesOut = metrics.counter("bytes.out");
+    private final LongAdder sendErrors = metrics.counter("send.errors");
+    private final SeenQueryCache seenQueries = new SeenQueryCache(Configuration.QUERY_CACHE_SIZE, Configuration.QUERY_CACHE_TTL);
+    private final ForwardTable forwards = new ForwardTable(Configuration.QUERY_CACHE_SIZE, Configuration.QUERY_CACHE_TTL);
+    private final StubCache stubs = new StubCache(Configuration.STUB_CACHE_SIZE, metrics);
+    private final RemoteCallExecutor remoteCalls = new RemoteCallExecutor(stubs, Configuration.RMI_CALL_THREADS,
+            Configuration.RMI_CALL_QUEUE_SIZE, Configuration.RMI_PEER_MAX_CALLS, metrics);
+    private final SearchBatcher batcher = new SearchBatcher(remoteCalls, Configuration.RMI_BATCH_SIZE, Configuration.RMI_BATCH_DELAY,
+            Configuration.RMI_CALL_QUEUE_SIZE, metrics);
 
     /**
      * Register with bootstrap server.
@@ -36,21 +59,23 @@ public class RMIMessageService implements MessageService {
 
         if (socket == null) {
             try {
-                System.out.println("Binding UDP socket for Bootstrap Server communication");
+                Log.info("Binding UDP socket for Bootstrap Server communication");
                 socket = new DatagramSocket();
-                System.out.println("Binding Successful");
+                socket.setSoTimeout(Configuration.LISTENER_TIMEOUT);
+                Log.info("Binding Successful");
             } catch (SocketException e) {
-                e.printStackTrace();
                 throw new RuntimeException("Failed to bind UDP socket port " + nodeData.getPort(), e);
             }
         }
 
+        metrics.counter("messages.out.REG").increment();
         String bootstrapMessage = sendMessageBootstrap("REG " + nodeData.getIP() + " " + nodeData.getPort() + " " + nodeData.getUsername());
 
         StringTokenizer st = new StringTokenizer(bootstrapMessage, " ");
         String length = st.nextToken();
         String command = st.nextToken();
         int nodeCount = Integer.parseInt(st.nextToken());
+        metrics.counter("messages.in." + command).increment();
 
         List<NodeData> randNeighbours = new ArrayList<NodeData>();
         if (command.equals("REGOK")) {
@@ -58,10 +83,14 @@ public class RMIMessageService implements MessageService {
                 for (int i = 0; i < nodeCount; i++) {
                     String ip = st.nextToken();
                     int port = Integer.parseInt(st.nextToken());
-                    randNeighbours.add(new NodeData(ip, port, null));
+                    try {
+                        randNeighbours.add(new NodeData(ip, port, null));
+                    } catch (IllegalArgumentException e) {
+                        Log.warn("Ignoring neighbour {}:{} from the Bootstrap server: {}", ip, port, e.getMessage());
+                    }
                 }
             } else {
-                System.out.println("Error registering to Bootstrap server: " + nodeCount);
+                Log.warn("Error registering to Bootstrap server: {}", nodeCount);
             }
         }
 
@@ -79,6 +108,7 @@ public class RMIMessageService implements MessageService {
 
         if (socket != null) {
 
+            metrics.counter("messages.out.UNREG").increment();
             String bootstrapMessage = sendMessageBootstrap("UNREG " + nodeData.getIP() + " " + nodeData.getPort() + " " + nodeData.getUsername());
 
             StringTokenizer st = new StringTokenizer(bootstrapMessage, " ");
@@ -86,12 +116,13 @@ public class RMIMessageService implements MessageService {
             String length = st.nextToken();
             String command = st.nextToken();
             int value = Integer.parseInt(st.nextToken());
+            metrics.counter("messages.in." + command).increment();
 
             if (command.equals("UNROK")) {
                 if (value < 1) {
                     return true;
                 } else {
-                    System.out.println("Error unregistering from Bootstrap server: " + value);
+                    Log.warn("Error unregistering from Bootstrap server: {}", value);
                 }
             }
 
@@ -110,17 +141,21 @@ public class RMIMessageService implements MessageService {
     public boolean join(NodeData nodeData, NodeData neighbor) {
 
         try {
-            Registry registry = LocateRegistry.getRegistry(neighbor.getIP(), neighbor.getPort());
-            RemoteMethod stub = (RemoteMethod) registry.lookup("RemoteMethod");
-            boolean response = stub.join(nodeData.getIP(), nodeData.getPort());
+            metrics.counter("messages.out.JOIN").increment();
+            boolean response = stubs.get(neighbor).join(nodeData.getIP(), nodeData.getPort());
             if (response) {
-                System.out.println("Joined with neighbour " + neighbor.getIP() + ":" + neighbor.getPort());
+                Log.info("Joined with neighbour {}", neighbor);
             } else {
-                System.out.println("Failed to Join with neighbour " + neighbor.getIP() + ":" + neighbor.getPort());
+                Log.warn("Failed to Join with neighbour {}", neighbor);
             }
             return response;
+        } catch (RemoteException e) {
+            sendErrors.increment();
+            stubs.invalidate(neighbor);
+            Log.error("Could not join neighbour " + neighbor, e);
         } catch (Exception e) {
-            e.printStackTrace();
+            sendErrors.increment();
+            Log.error("Could not join neighbour " + neighbor, e);
         }
         return false;
     }
@@ -134,17 +169,19 @@ public class RMIMessageService implements MessageService {
      */
     public boolean leave(NodeData nodeData, NodeData neighbor) {
         try {
-            Registry registry = LocateRegistry.getRegistry(neighbor.getIP(), neighbor.getPort());
-            RemoteMethod stub = (RemoteMethod) registry.lookup("RemoteMethod");
-            boolean response = stub.leave(nodeData.getIP(), nodeData.getPort());
+            metrics.counter("messages.out.LEAVE").increment();
+            boolean response = stubs.get(neighbor).leave(nodeData.getIP(), nodeData.getPort());
             if (response) {
-                System.out.println("Leave successful with neighbour " + neighbor.toString());
+                Log.info("Leave successful with neighbour {}", neighbor);
             } else {
-                System.out.println("Leave failed with neighbour " + neighbor.toString());
+                Log.warn("Leave failed with neighbour {}", neighbor);
             }
             return response;
         } catch (Exception e) {
-            e.printStackTrace();
+            sendErrors.increment();
+            Log.error("Could not leave neighbour " + neighbor, e);
+        } finally {
+            stubs.invalidate(neighbor);
         }
         return false;
     }
@@ -153,56 +190,92 @@ public class RMIMessageService implements MessageService {
      * Sends a search request to a neighbour.
      *
      * @param filename search file name.
+     * @param queryId  unique id of the query.
+     * @param hops     number of times the query may be forwarded after the neighbour.
+     * @param walk     true to send the query as a random walker, which each node forwards to a single neighbour.
      * @param nodeData node details of the searching node
      * @param neighbor node details of the neighbour.
      */
-    public void search(String filename, NodeData nodeData, NodeData neighbor) {
-        try {
-            Registry registry = LocateRegistry.getRegistry(neighbor.getIP(), neighbor.getPort());
-            RemoteMethod stub = (RemoteMethod) registry.lookup("RemoteMethod");
-            System.out.println("Sending search request \"" + filename + "\" to Neighbor at " + neighbor.toString());
-            stub.search(filename, nodeData.getIP(), nodeData.getPort(), nodeData.getIP(), nodeData.getPort(), Configuration.HOPS_MAX);
-        } catch (Exception e) {
-            e.printStackTrace();
+    public void search(String filename, long queryId, int hops, boolean walk, NodeData nodeData, NodeData neighbor) {
+        // Copies of our own query that find their way back are duplicates as well, walkers may pass any node again.
+        if (!walk) {
+            seenQueries.markSeen(queryId);
         }
+        Log.debug("Sending search request \"{}\" to Neighbor at {}", filename, neighbor);
+        searchesOut.increment();
+        forwards.addForward(queryId, neighbor);
+        batcher.search(neighbor, new SearchRequest(filename, queryId, nodeData.getIP(), nodeData.getPort(), nodeData.getIP(),
+                nodeData.getPort(), hops, walk));
     }
 
+    /**
+     * Cancels a query of this node, the neighbours it was sent to pass the cancel on along the paths it took.
+     *
+     * @param queryId  id the query was sent with.
+     * @param nodeData node details of this node.
+     */
+    public void cancel(long queryId, NodeData nodeData) {
+        sendCancel(queryId, nodeData.getIP(), nodeData.getPort(), forwards.cancel(queryId));
+    }
+
+    // drops the queued searches of a cancelled query and passes the cancel on to the neighbours it was sent to
+    private void sendCancel(final long queryId, final String searchNodeIP, final int searchNodePort, List<NodeData> neighbors) {
+        for (NodeData neighbor : neighbors) {
+            cancelledQueries.add(batcher.cancel(neighbor, queryId));
+            Log.debug("Cancelling query {} at Neighbor {}", queryId, neighbor);
+            metrics.counter("messages.out.CANCEL").increment();
+            remoteCalls.submit(neighbor, "cancel", new RemoteCallExecutor.RemoteCall() {
+                public void call(RemoteMethod stub) throws RemoteException {
+                    stub.cancel(searchNodeIP, searchNodePort, queryId);
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Sends the catalog summary of this node to a neighbour.
+     *
+     * @param nodeData node details of this node.
+     * @param neighbor node details of the neighbour.
+     * @param catalog  Bloom filter of the terms in the file names of this node.
+     */
+    public void publishCatalog(final NodeData nodeData, NodeData neighbor, final BloomFilter catalog) {
+        Log.debug("Sending the catalog to Neighbor at {}", neighbor);
+        metrics.counter("messages.out.CATALOG").increment();
+        remoteCalls.submit(neighbor, "catalog", new RemoteCallExecutor.RemoteCall() {
+            public void call(RemoteMethod stub) throws RemoteException {
+                stub.catalog(nodeData.getIP(), nodeData.getPort(), catalog);
+            }
+        });
+    }
 
     public void startListening(MessageReceivedEvent receivedEvent) {
 
-        System.out.println("Starting RMI Server...");
+        Log.info("Starting RMI Server...");
         remoteMethodServer = new RemoteMethodServer(receivedEvent);
         remoteMethodServer.bind();
 
     }
 
     public void stopListening() {
-        System.out.println("Stopping listener thread...");
+        Log.info("Stopping listener thread...");
         remoteMethodServer.unbind();
 
     }
 
-    public int getReceivedQueries() {
-        return receivedQueries;
-    }
-
-    public int getForwardedQueries() {
-        return forwardedQueries;
-    }
-
-    public int getAnsweredQueries() {
-        return answeredQueries;
+    public MetricsRegistry getMetrics() {
+        return metrics;
     }
 
     public void resetStatistics() {
-        receivedQueries = 0;
-        forwardedQueries = 0;
-        answeredQueries = 0;
+        metrics.reset();
     }
 
     // client mode communication with bootstrap
     private String sendMessageBootstrap(String message) {
         while (true) {
+            ByteBuffer buffer = bufferPool.lease();
             try {
 
                 String request = String.format("%04d", message.length() + 5) + " " + message;
@@ -210,28 +283,27 @@ public class RMIMessageService implements MessageService {
                 DatagramPacket dpRequest = new DatagramPacket(request.getBytes(), request.getBytes().length,
                         InetAddress.getByName(Configuration.BOOTSTRAP_IP), Configuration.BOOTSTRAP_PORT);
 
-                System.out.println("Sending (" + request + ") to Bootstrap Server at " + Configuration.BOOTSTRAP_IP + ":"
-                        + Configuration.BOOTSTRAP_PORT);
+                Log.info("Sending ({}) to Bootstrap Server at {}:{}", request, Configuration.BOOTSTRAP_IP, Configuration.BOOTSTRAP_PORT);
                 socket.send(dpRequest);
+                bytesOut.add(dpRequest.getLength());
 
-                socket.setSoTimeout(Configuration.LISTENER_TIMEOUT);
-
-                byte[] buffer = new byte[65536];
-                DatagramPacket incoming = new DatagramPacket(buffer, buffer.length);
+                DatagramPacket incoming = new DatagramPacket(buffer.array(), buffer.capacity());
 
-                System.out.println("Waiting for Bootstrap Server response...");
+                Log.debug("Waiting for Bootstrap Server response...");
                 socket.receive(incoming);
+                bytesIn.add(incoming.getLength());
 
-                byte[] data = incoming.getData();
-
-                String bootstrapResponse = new String(data, 0, incoming.getLength());
-                System.out.println("Bootstrap Response successful (" + bootstrapResponse + ")");
+                String bootstrapResponse = new String(incoming.getData(), 0, incoming.getLength());
+                Log.info("Bootstrap Response successful ({})", bootstrapResponse);
 
                 return bootstrapResponse;
             } catch (SocketTimeoutException ex) {
-                System.out.println("Connection timeout. Re-connecting...");
+                Log.warn("Connection timeout. Re-connecting...");
             } catch (IOException ex) {
-                ex.printStackTrace();
+                sendErrors.increment();
+                Log.error("Could not reach the peer", ex);
+            } finally {
+                bufferPool.release(buffer);
             }
         }
     }
@@ -240,6 +312,7 @@ public class RMIMessageService implements MessageService {
     private String sendMessage(String message, String ip, int port) {
 
         while (true) {
+            ByteBuffer buffer = bufferPool.lease();
             try {
 
                 String request = String.format("%04d", message.length() + 5) + " " + message;
@@ -247,27 +320,27 @@ public class RMIMessageService implements MessageService {
                 DatagramPacket dpRequest = new DatagramPacket(request.getBytes(), request.getBytes().length,
                         InetAddress.getByName(ip), port);
 
-                System.out.println("Sending (" + request + ") to Node at " + ip + ":" + port);
+                Log.info("Sending ({}) to Node at {}:{}", request, ip, port);
                 socket.send(dpRequest);
+                bytesOut.add(dpRequest.getLength());
 
-                socket.setSoTimeout(Configuration.LISTENER_TIMEOUT);
-
-                byte[] buffer = new byte[65536];
-                DatagramPacket incoming = new DatagramPacket(buffer, buffer.length);
+                DatagramPacket incoming = new DatagramPacket(buffer.array(), buffer.capacity());
 
-                System.out.println("Waiting for Node response...");
+                Log.debug("Waiting for Node response...");
                 socket.receive(incoming);
+                bytesIn.add(incoming.getLength());
 
-                byte[] data = incoming.getData();
-
-                String nodeResponse = new String(data, 0, incoming.getLength());
-                System.out.println("Node Response successful (" + nodeResponse + ")");
+                String nodeResponse = new String(incoming.getData(), 0, incoming.getLength());
+                Log.info("Node Response successful ({})", nodeResponse);
 
                 return nodeResponse;
             } catch (SocketTimeoutException ex) {
-                System.out.println("Connection timeout. Re-connecting...");
+                Log.warn("Connection timeout. Re-connecting...");
             } catch (IOException ex) {
-                ex.printStackTrace();
+                sendErrors.increment();
+                Log.error("Could not reach the peer", ex);
+            } finally {
+                bufferPool.release(buffer);
             }
         }
     }
@@ -292,11 +365,11 @@ public class RMIMessageService implements MessageService {
                 RemoteMethod skeleton = (RemoteMethod) UnicastRemoteObject.exportObject(this, 0);
                 registry = LocateRegistry.createRegistry(Configuration.NODE_PORT);
                 registry.bind("RemoteMethod", skeleton);
-                System.out.println("Remote object bind successful");
+                Log.info("Remote object bind successful");
             } catch (RemoteException e) {
-                e.printStackTrace();
+                Log.error("Could not bind the remote object", e);
             } catch (AlreadyBoundException e) {
-                e.printStackTrace();
+                Log.error("Could not bind the remote object", e);
             }
         }
 
@@ -304,82 +377,143 @@ public class RMIMessageService implements MessageService {
         void unbind() {
             try {
                 registry.unbind("RemoteMethod");
-                System.out.println("Remote object unbind successful");
+                Log.info("Remote object unbind successful");
             } catch (RemoteException e) {
-                e.printStackTrace();
+                Log.error("Could not unbind the remote object", e);
             } catch (NotBoundException e) {
-                e.printStackTrace();
+                Log.error("Could not unbind the remote object", e);
             }
         }
 
         // Remote call for join a neighbour
         public boolean join(String neighborIP, int neighbourPort) {
             NodeData neighbor = new NodeData(neighborIP, neighbourPort, null);
-            System.out.println("Join called from neighbour " + neighbor.toString());
-            return receivedEvent.onJoin(neighbor);
+            Log.info("Join called from neighbour {}", neighbor);
+            metrics.counter("messages.in.JOIN").increment();
+            boolean result = receivedEvent.onJoin(neighbor);
+            if (result && Configuration.STUB_PREFETCH) {
+                stubs.prefetch(neighbor);
+            }
+            return result;
         }
 
         // Remote call for leave a neighbour
         public boolean leave(String neighborIP, int neighbourPort) {
             NodeData neighbor = new NodeData(neighborIP, neighbourPort, null);
-            System.out.println("Leave called from neighbour " + neighbor.toString());
+            Log.info("Leave called from neighbour {}", neighbor);
+            metrics.counter("messages.in.LEAVE").increment();
+            stubs.invalidate(neighbor);
             return receivedEvent.onLeave(neighbor);
         }
 
         // Remote call for search
-        public void search(String filename, String searchNodeIP, int searchNodePort, String neighborIP, int neighbourPort, int hops) {
+        public void search(String filename, String searchNodeIP, int searchNodePort, String neighborIP, int neighbourPort, int hops,
+                           long queryId) {
+            handleSearch(new SearchRequest(filename, queryId, searchNodeIP, searchNodePort, neighborIP, neighbourPort, hops, false));
+        }
 
-            NodeData searchNode = new NodeData(searchNodeIP, searchNodePort, null);
-            NodeData neighbor = new NodeData(neighborIP, neighbourPort, null);
+        // Remote call for a batch of searches
+        public void searchBatch(List<SearchRequest> requests) {
+            for (SearchRequest request : requests) {
+                try {
+                    handleSearch(request);
+                } catch (IllegalArgumentException e) {
+                    Log.warn("Dropping search of {}:{}: {}", request.getSearchNodeIP(), request.getSearchNodePort(), e.getMessage());
+                }
+            }
+        }
 
-            System.out.println("Search called from neighbor " + neighbor.toString() + ". Searching node " + searchNode.toString());
-            SearchResult searchResult = receivedEvent.onSearch(filename, searchNode, neighbor);
-            receivedQueries++;
-            if (searchResult.isSuccess()) {
-                System.out.println("Search success on this node. Hops:" + hops);
+        // Remote call when search is success
+        public void searchSuccess(String ownerIP, int ownerPort, List<String> matchingFileNames, int hops, long queryId) {
+            handleSearchSuccess(new SearchResponse(queryId, ownerIP, ownerPort, matchingFileNames, hops));
+        }
+
+        // Remote call for a batch of successful searches
+        public void searchSuccessBatch(List<SearchResponse> responses) {
+            for (SearchResponse response : responses) {
                 try {
-                    Registry registry = LocateRegistry.getRegistry(searchNode.getIP(), searchNode.getPort());
-                    RemoteMethod stub = (RemoteMethod) registry.lookup("RemoteMethod");
-                    NodeData owner = searchResult.getOwnerNode();
-                    stub.searchSuccess(owner.getIP(), owner.getPort(), searchResult.getMatchingFileNames(), hops);
-                    answeredQueries++;
-                } catch (Exception e) {
-                    e.printStackTrace();
+                    handleSearchSuccess(response);
+                } catch (IllegalArgumentException e) {
+                    Log.warn("Dropping result of {}:{}: {}", response.getOwnerIP(), response.getOwnerPort(), e.getMessage());
                 }
+            }
+        }
+
+        // Remote call when a neighbour publishes its catalog summary
+        public void catalog(String neighborIP, int neighbourPort, BloomFilter catalog) {
+            NodeData neighbor = new NodeData(neighborIP, neighbourPort, null);
+            metrics.counter("messages.in.CATALOG").increment();
+            receivedEvent.onCatalog(neighbor, catalog);
+        }
+
+        // Remote call when a query which passed this node is cancelled
+        public void cancel(String searchNodeIP, int searchNodePort, long queryId) {
+            metrics.counter("messages.in.CANCEL").increment();
+            Log.debug("Query {} of {}:{} cancelled", queryId, searchNodeIP, searchNodePort);
+            sendCancel(queryId, searchNodeIP, searchNodePort, forwards.cancel(queryId));
+        }
+
+        // matches the query locally, the answer or the forwards are sent after the remote call returned
+        private void handleSearch(SearchRequest request) {
+
+            NodeData searchNode = new NodeData(request.getSearchNodeIP(), request.getSearchNodePort(), null);
+            NodeData neighbor = new NodeData(request.getNeighborIP(), request.getNeighborPort(), null);
+            int hops = request.getHops();
+
+            Log.debug("Search called from neighbor {}. Searching node {}", neighbor, searchNode);
+            searchesIn.increment();
+            receivedQueries.increment();
+            if (forwards.isCancelled(request.getQueryId())) {
+                cancelledQueries.increment();
+                Log.debug("Dropping cancelled query {}", request.getQueryId());
+                return;
+            }
+            // A walker is a single copy of the query which may come by again.
+            if (!request.isWalk() && !seenQueries.markSeen(request.getQueryId())) {
+                duplicateQueries.increment();
+                Log.debug("Dropping duplicate query {}", request.getQueryId());
+                return;
+            }
+            SearchResult searchResult = receivedEvent.onSearch(request.getQuery(), hops, request.isWalk(), searchNode, neighbor);
+            if (searchResult.isSuccess()) {
+                Log.debug("Search success on this node. Hops:{}", hops);
+                NodeData owner = searchResult.getOwnerNode();
+                batcher.searchSuccess(searchNode, new SearchResponse(request.getQueryId(), owner.getIP(), owner.getPort(),
+                        searchResult.getMatchingFileNames(), hops));
+                answersOut.increment();
+                answeredQueries.increment();
 
             } else {
-                System.out.println("Search failed on this node");
-                try {
-                    if (hops > 0) {
-                        hops--;
-                        List<NodeData> selectedNeighbours = searchResult.getSelectedNeighbours();
-
-                        for (NodeData selectedNeighbour : selectedNeighbours) {
-                            System.out.println("Calling search on neighbour " + selectedNeighbour.toString());
-                            Registry registry = LocateRegistry.getRegistry(selectedNeighbour.getIP(), selectedNeighbour.getPort());
-                            RemoteMethod stub = (RemoteMethod) registry.lookup("RemoteMethod");
-                            NodeData searchedNode = searchResult.getOwnerNode();
-                            stub.search(filename, searchNode.getIP(), searchNode.getPort(), searchedNode.getIP(), searchedNode.getPort(), hops);
-                            forwardedQueries++;
-                        }
-
-                    } else {
-                        System.out.println("Hop is 0, dropping the request. Node: " + searchResult.getOwnerNode().toString());
+                Log.debug("Search failed on this node");
+                if (hops > 0) {
+                    NodeData searchedNode = searchResult.getOwnerNode();
+                    SearchRequest forward = new SearchRequest(request.getQuery(), request.getQueryId(), request.getSearchNodeIP(),
+                            request.getSearchNodePort(), searchedNode.getIP(), searchedNode.getPort(), hops - 1, request.isWalk());
+                    for (NodeData selectedNeighbour : searchResult.getSelectedNeighbours()) {
+                        Log.debug("Calling search on neighbour {}", selectedNeighbour);
+                        forwards.addForward(request.getQueryId(), selectedNeighbour);
+                        batcher.search(selectedNeighbour, forward);
+                        searchesOut.increment();
+                        forwardedQueries.increment();
                     }
-                } catch (Exception e) {
-                    e.printStackTrace();
+
+                } else {
+                    Log.debug("Hop is 0, dropping the request. Node: {}", searchResult.getOwnerNode());
                 }
             }
         }
 
-        // Remote call when search is success
-        public void searchSuccess(String ownerIP, int ownerPort, List<String> matchingFileNames, int hops) {
+        private void handleSearchSuccess(SearchResponse response) {
+            answersIn.increment();
 
+            int hops = response.getHops();
             SearchResult result = new SearchResult();
-            result.setOwnerNode(new NodeData(ownerIP, ownerPort, null));
-            result.setMatchingFileNames(matchingFileNames);
+            result.setQueryId(response.getQueryId());
+            result.setOwnerNode(new NodeData(response.getOwnerIP(), response.getOwnerPort(), null));
+            result.setMatchingFileNames(response.getMatchingFileNames());
             result.setHopCount(Configuration.HOPS_MAX - hops);
-            System.out.println("Search success. Owner node " + result.getOwnerNode() + ". Hop count: " + (Configuration.HOPS_MAX - hops));
+            result.setRemainingHops(hops);
+            Log.debug("Search success. Owner node {}. Hop count: {}", result.getOwnerNode(), Configuration.HOPS_MAX - hops);
             receivedEvent.onSearchSuccess(result);
         }
     }
@@ -0,0 +1,145 @@
+import java.rmi.RemoteException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.LongSupplier;
+
+/**
+ * Makes outbound remote calls on a bounded pool of threads, so that a node handling a remote call can return
+ * at once instead of waiting for the calls it makes to other nodes. The number of calls waiting for or running
+ * against a single peer is capped, so one slow peer cannot take all threads. Calls over the cap or beyond the
+ * queue are dropped and counted, like a datagram the network could not deliver.
+ */
+public class RemoteCallExecutor {
+
+    /**
+     * Remote call to make with the stub of the peer.
+     */
+    public interface RemoteCall {
+        void call(RemoteMethod stub) throws RemoteException;
+    }
+
+    private final StubCache stubs;
+    private final int maxCallsPerPeer;
+    private final ThreadPoolExecutor executor;
+    // Calls waiting for or running against each peer, peers without any are left out.
+    private final ConcurrentHashMap<Long, Integer> peerCalls = new ConcurrentHashMap<Long, Integer>();
+    private final LongAdder rejected;
+    private final LongAdder failed;
+
+    /**
+     * @param stubs           cache the stubs of the peers are taken from.
+     * @param threads         number of threads making calls.
+     * @param queueSize       number of calls waiting for a thread.
+     * @param maxCallsPerPeer number of calls waiting for or running against one peer.
+     * @param metrics         registry the dropped and failed calls are counted in.
+     */
+    public RemoteCallExecutor(StubCache stubs, int threads, int queueSize, int maxCallsPerPeer, MetricsRegistry metrics) {
+        this.stubs = stubs;
+        this.maxCallsPerPeer = Math.max(1, maxCallsPerPeer);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "rmi-call-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.rejected = metrics.counter("rmi.calls.rejected");
+        this.failed = metrics.counter("send.errors");
+        metrics.gauge("rmi.call.queue.depth", new LongSupplier() {
+            public long getAsLong() {
+                return executor.getQueue().size();
+            }
+        });
+    }
+
+    /**
+     * Queues a call to the peer.
+     *
+     * @param peer        node to call.
+     * @param description description of the call for the log.
+     * @param call        call to make.
+     * @return false if the call was dropped because the peer or the queue is at its limit.
+     */
+    public boolean submit(NodeData peer, String description, RemoteCall call) {
+        return submit(peer, description, call, null);
+    }
+
+    /**
+     * Queues a call to the peer.
+     *
+     * @param peer        node to call.
+     * @param description description of the call for the log.
+     * @param call        call to make.
+     * @param completion  run after the call was made or failed, not run if the call is dropped. May be null.
+     * @return false if the call was dropped because the peer or the queue is at its limit.
+     */
+    public boolean submit(final NodeData peer, final String description, final RemoteCall call, final Runnable completion) {
+        if (!acquire(peer)) {
+            rejected.increment();
+            Log.warn("Too many outstanding calls to {}, dropping {}", peer, description);
+            return false;
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        call.call(stubs.get(peer));
+                    } catch (RemoteException e) {
+                        failed.increment();
+                        stubs.invalidate(peer);
+                        Log.warn("Failed to {} on {}: {}", description, peer, e);
+                    } catch (Exception e) {
+                        failed.increment();
+                        Log.warn("Failed to {} on {}: {}", description, peer, e);
+                    } finally {
+                        release(peer);
+                        if (completion != null) {
+                            completion.run();
+                        }
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            release(peer);
+            rejected.increment();
+            Log.warn("Remote call queue full, dropping {} on {}", description, peer);
+            return false;
+        }
+    }
+
+    // counts a call against the peer unless it is at its cap, the count is checked and changed in one atomic step
+    private boolean acquire(NodeData peer) {
+        final boolean[] acquired = {false};
+        peerCalls.compute(peer.getKey(), new BiFunction<Long, Integer, Integer>() {
+            public Integer apply(Long key, Integer calls) {
+                int current = calls == null ? 0 : calls;
+                if (current >= maxCallsPerPeer) {
+                    return calls;
+                }
+                acquired[0] = true;
+                return current + 1;
+            }
+        });
+        return acquired[0];
+    }
+
+    // peers without outstanding calls are forgotten, so that the searching nodes answered once do not pile up
+    private void release(NodeData peer) {
+        peerCalls.computeIfPresent(peer.getKey(), new BiFunction<Long, Integer, Integer>() {
+            public Integer apply(Long key, Integer calls) {
+                return calls > 1 ? calls - 1 : null;
+            }
+        });
+    }
+}
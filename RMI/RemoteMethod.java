@@ -8,7 +8,11 @@ import java.util.List;
 public interface RemoteMethod extends Remote {
     boolean join(String neighborIP, int neighbourPort) throws RemoteException;;
     boolean leave(String neighborIP, int neighbourPort) throws RemoteException;;
-    void search(String filename, String searchNodeIP, int searchNodePort, String neighborIP, int neighbourPort, int hops) throws RemoteException;;
-    void searchSuccess(String ownerIP, int ownerPort,List<String> matchingFileNames, int hops) throws RemoteException;
+    void search(String filename, String searchNodeIP, int searchNodePort, String neighborIP, int neighbourPort, int hops, long queryId) throws RemoteException;;
+    void searchSuccess(String ownerIP, int ownerPort,List<String> matchingFileNames, int hops, long queryId) throws RemoteException;
+    void searchBatch(List<SearchRequest> requests) throws RemoteException;
+    void searchSuccessBatch(List<SearchResponse> responses) throws RemoteException;
+    void catalog(String neighborIP, int neighbourPort, BloomFilter catalog) throws RemoteException;
+    void cancel(String searchNodeIP, int searchNodePort, long queryId) throws RemoteException;
 
 }
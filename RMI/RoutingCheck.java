@@ -0,0 +1,138 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * Self-check of the routing table: decay of the scores with the half life, eviction of the stalest term,
+ * replacement of the lowest scored neighbour of a full term, and picks which never go to excluded neighbours
+ * or neighbours which left. The table runs on a clock the check moves by hand.
+ * Run with {@code java RoutingCheck} from the compiled folder.
+ */
+public class RoutingCheck {
+
+    private static final long HALF_LIFE = 1000;
+    private static final double EPSILON = 1e-9;
+
+    private static long now = 0;
+    private static final LongSupplier CLOCK = new LongSupplier() {
+        public long getAsLong() {
+            return now;
+        }
+    };
+
+    public static void main(String[] args) {
+        checkDecay();
+        checkTermEviction();
+        checkReplacement();
+        checkSelection();
+        Checks.report("RoutingCheck");
+    }
+
+    private static void checkDecay() {
+        RoutingTable table = table(16, 0);
+        NodeData neighbour = node(1);
+        now = 0;
+        table.reward(terms("lord"), neighbour, 1.0);
+        Checks.isTrue(near(1.0, table.score("lord", neighbour)), "fresh score");
+        now = HALF_LIFE;
+        Checks.isTrue(near(0.5, table.score("lord", neighbour)), "half after one half life");
+        now = 2 * HALF_LIFE;
+        Checks.isTrue(near(0.25, table.score("lord", neighbour)), "quarter after two half lives");
+        table.reward(terms("lord"), neighbour, 1.0);
+        Checks.isTrue(near(1.25, table.score("lord", neighbour)), "reward adds to the decayed score");
+        now = 3 * HALF_LIFE;
+        Checks.isTrue(near(0.625, table.score("lord", neighbour)), "decay goes on after a reward");
+        Checks.equal(0.0, table.score("rings", neighbour), "unknown term");
+    }
+
+    private static void checkTermEviction() {
+        RoutingTable table = table(2, 0);
+        NodeData neighbour = node(1);
+        now = 0;
+        table.reward(terms("lord"), neighbour, 1.0);
+        table.reward(terms("rings"), neighbour, 1.0);
+        table.reward(terms("lord"), neighbour, 1.0);
+        table.reward(terms("harry"), neighbour, 1.0);
+        Checks.equal(2, table.size(), "terms past the maximum are evicted");
+        Checks.equal(0.0, table.score("rings", neighbour), "stalest term is evicted");
+        Checks.isTrue(table.score("lord", neighbour) > 0, "term rewarded again is kept");
+        Checks.isTrue(table.score("harry", neighbour) > 0, "newest term is kept");
+        Checks.equal(0, table(0, 0).size(), "table without terms");
+    }
+
+    // A term keeps its eight best neighbours, a new one takes the place of the lowest score.
+    private static void checkReplacement() {
+        RoutingTable table = table(16, 0);
+        now = 0;
+        for (int i = 1; i <= 8; i++) {
+            table.reward(terms("lord"), node(i), i);
+        }
+        table.reward(terms("lord"), node(9), 0.5);
+        Checks.equal(0.0, table.score("lord", node(1)), "lowest score is replaced");
+        Checks.isTrue(near(0.5, table.score("lord", node(9))), "new neighbour takes its place");
+        for (int i = 2; i <= 8; i++) {
+            Checks.isTrue(near(i, table.score("lord", node(i))), "score of neighbour " + i + " is kept");
+        }
+        table.reward(terms("lord"), node(2), 1.0);
+        Checks.isTrue(near(3.0, table.score("lord", node(2))), "known neighbour adds up");
+        Checks.isTrue(near(0.5, table.score("lord", node(9))), "no replacement for a known neighbour");
+    }
+
+    private static void checkSelection() {
+        NodeData best = node(1);
+        NodeData second = node(2);
+        NodeData third = node(3);
+        NodeData unscored = node(4);
+        NeighbourTable neighbours = new NeighbourTable();
+        for (NodeData neighbour : Arrays.asList(best, second, third, unscored)) {
+            neighbours.add(neighbour);
+        }
+        RoutingTable table = table(16, 0);
+        now = 0;
+        table.reward(terms("lord"), best, 4.0);
+        table.reward(terms("lord"), second, 3.0);
+        table.reward(terms("rings"), third, 3.6);
+        table.reward(terms("lord"), third, 0.6);
+
+        Checks.equal(Arrays.asList(best), table.select(terms("lord"), neighbours, 1), "best score");
+        Checks.equal(Arrays.asList(third), table.select(terms("lord", "rings"), neighbours, 1),
+                "scores are summed over the terms");
+        Checks.equal(Arrays.asList(best, second, third), table.select(terms("lord"), neighbours, 3), "picks by score");
+        Checks.equal(Arrays.asList(second), table.select(terms("lord"), neighbours, 1, best), "excluded neighbour");
+        neighbours.remove(second);
+        Checks.equal(Arrays.asList(third), table.select(terms("lord"), neighbours, 1, best), "neighbour which left");
+
+        // Exploring picks random neighbours, which must not be excluded or gone either.
+        RoutingTable exploring = table(16, 0.5);
+        exploring.reward(terms("lord"), best, 4.0);
+        exploring.reward(terms("lord"), second, 3.0);
+        boolean valid = true;
+        for (int round = 0; round < 1000; round++) {
+            List<NodeData> selected = exploring.select(terms("lord"), neighbours, 3, best);
+            valid &= selected.size() == 2 && new HashSet<NodeData>(selected).size() == 2
+                    && !selected.contains(best) && !selected.contains(second);
+        }
+        Checks.isTrue(valid, "exploring picks only neighbours which are neither excluded nor gone");
+
+        List<NodeData> candidates = new ArrayList<NodeData>(Arrays.asList(unscored, third, best));
+        Checks.equal(Arrays.asList(best, third), table.select(terms("lord"), candidates, 2), "candidates by score");
+    }
+
+    private static RoutingTable table(int maxTerms, double exploration) {
+        return new RoutingTable(maxTerms, HALF_LIFE, exploration, new MetricsRegistry(), CLOCK);
+    }
+
+    private static NodeData node(int host) {
+        return new NodeData("10.0.0." + host, 5000, null);
+    }
+
+    private static List<String> terms(String... terms) {
+        return Arrays.asList(terms);
+    }
+
+    private static boolean near(double expected, double actual) {
+        return Math.abs(expected - actual) <= EPSILON * Math.max(1, Math.abs(expected));
+    }
+}
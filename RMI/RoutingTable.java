@@ -0,0 +1,325 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Learned routes from query terms to the neighbours whose paths answered queries with those terms.
+ * A neighbour scores for a query with the sum of its scores for the query terms. Scores decay exponentially
+ * with the configured half life, so routes which stop producing answers are forgotten.
+ * The table keeps the most recently rewarded terms, each with the best {@value #NEIGHBOURS_PER_TERM} neighbours,
+ * so its memory is bounded however many distinct queries pass through the node. The routes of a term are an
+ * immutable snapshot which a reward replaces, so selecting neighbours never takes a lock.
+ * <p>
+ * Neighbours are picked by score, except that each pick is random with the exploration probability,
+ * which lets new neighbours and new paths earn a score. Queries without any scored neighbour are sent to
+ * random neighbours as before.
+ */
+public class RoutingTable {
+
+    private static final int NEIGHBOURS_PER_TERM = 8;
+
+    private final int maxTerms;
+    private final double decayPerMilli;
+    private final double exploration;
+    private final LongSupplier clock;
+    // Read without locking, every reward publishes new routes for its terms.
+    private final ConcurrentHashMap<String, TermRoutes> routes = new ConcurrentHashMap<String, TermRoutes>();
+    // Terms in the order they were last rewarded, only used by reward to evict the stalest term.
+    private final LinkedHashMap<String, Boolean> rewardOrder = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+    private final LongAdder learnedPicks;
+    private final LongAdder randomPicks;
+    private final LongAdder rewards;
+
+    /**
+     * @param maxTerms    number of terms remembered, 0 to always pick neighbours at random.
+     * @param halfLife    time in milliseconds after which a score has decayed to half.
+     * @param exploration probability of picking a random neighbour instead of the best scored one.
+     * @param metrics     registry the picks and rewards are counted in.
+     */
+    public RoutingTable(int maxTerms, long halfLife, double exploration, MetricsRegistry metrics) {
+        this(maxTerms, halfLife, exploration, metrics, new LongSupplier() {
+            public long getAsLong() {
+                return System.currentTimeMillis();
+            }
+        });
+    }
+
+    /**
+     * @param maxTerms    number of terms remembered, 0 to always pick neighbours at random.
+     * @param halfLife    time in milliseconds after which a score has decayed to half.
+     * @param exploration probability of picking a random neighbour instead of the best scored one.
+     * @param metrics     registry the picks and rewards are counted in.
+     * @param clock       current time in milliseconds, which the scores decay with.
+     */
+    public RoutingTable(int maxTerms, long halfLife, double exploration, MetricsRegistry metrics, LongSupplier clock) {
+        this.maxTerms = maxTerms;
+        this.decayPerMilli = Math.log(2) / Math.max(1, halfLife);
+        this.exploration = exploration;
+        this.clock = clock;
+        this.learnedPicks = metrics.counter("routing.picks.learned");
+        this.randomPicks = metrics.counter("routing.picks.random");
+        this.rewards = metrics.counter("routing.rewards");
+        metrics.gauge("routing.terms", new LongSupplier() {
+            public long getAsLong() {
+                return size();
+            }
+        });
+    }
+
+    /**
+     * Credits a neighbour with an answer to a query.
+     *
+     * @param queryTerms terms of the answered query.
+     * @param neighbour  neighbour the query was sent to.
+     * @param amount     credit added to the score of the neighbour for each term.
+     */
+    public synchronized void reward(Collection<String> queryTerms, NodeData neighbour, double amount) {
+        if (maxTerms == 0) {
+            return;
+        }
+        long now = clock.getAsLong();
+        for (String term : queryTerms) {
+            TermRoutes termRoutes = routes.get(term);
+            routes.put(term, (termRoutes == null ? TermRoutes.EMPTY : termRoutes).add(neighbour.getKey(), amount, now, decayPerMilli));
+            rewardOrder.put(term, Boolean.TRUE);
+            if (rewardOrder.size() > maxTerms) {
+                Iterator<String> eldest = rewardOrder.keySet().iterator();
+                routes.remove(eldest.next());
+                eldest.remove();
+            }
+        }
+        rewards.increment();
+    }
+
+    /**
+     * Picks distinct neighbours for a query, preferring the neighbours with the highest score for its terms.
+     * Only the few neighbours stored under the query terms are scored, the other picks are random neighbours.
+     *
+     * @param queryTerms terms of the query.
+     * @param neighbours neighbours to pick from.
+     * @param count      number of neighbours to pick.
+     * @param excluded   nodes which must not be picked.
+     * @return up to count neighbours, fewer if there are not enough.
+     */
+    public List<NodeData> select(Collection<String> queryTerms, NeighbourTable neighbours, int count, NodeData... excluded) {
+        if (maxTerms == 0 || queryTerms.isEmpty() || routes.isEmpty()) {
+            List<NodeData> selected = neighbours.selectRandom(count, excluded);
+            randomPicks.add(selected.size());
+            return selected;
+        }
+        long now = clock.getAsLong();
+        long[] keys = new long[NEIGHBOURS_PER_TERM];
+        double[] scores = new double[NEIGHBOURS_PER_TERM];
+        int scored = 0;
+        for (String term : queryTerms) {
+            TermRoutes termRoutes = routes.get(term);
+            if (termRoutes == null) {
+                continue;
+            }
+            for (int i = 0; i < termRoutes.keys.length; i++) {
+                int index = indexOf(keys, scored, termRoutes.keys[i]);
+                if (index < 0) {
+                    if (scored == keys.length) {
+                        keys = Arrays.copyOf(keys, scored * 2);
+                        scores = Arrays.copyOf(scores, scored * 2);
+                    }
+                    index = scored++;
+                    keys[index] = termRoutes.keys[i];
+                    scores[index] = 0;
+                }
+                scores[index] += termRoutes.decayed(i, now, decayPerMilli);
+            }
+        }
+        Random random = ThreadLocalRandom.current();
+        List<NodeData> selected = new ArrayList<NodeData>(count);
+        // Each slot is explored with the exploration probability, the others go to the best scored neighbours.
+        int learnedSlots = 0;
+        for (int slot = 0; slot < count; slot++) {
+            if (random.nextDouble() >= exploration) {
+                learnedSlots++;
+            }
+        }
+        while (selected.size() < learnedSlots) {
+            int best = -1;
+            for (int i = 0; i < scored; i++) {
+                if (scores[i] > 0 && (best < 0 || scores[i] > scores[best])) {
+                    best = i;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            scores[best] = 0;
+            // Neighbours which left or are excluded leave the slot to the next best.
+            NodeData neighbour = neighbours.get(keys[best]);
+            if (neighbour != null && !isExcluded(neighbour, excluded)) {
+                selected.add(neighbour);
+                learnedPicks.increment();
+            }
+        }
+        if (selected.size() < count) {
+            NodeData[] notAgain = Arrays.copyOf(excluded, excluded.length + selected.size());
+            for (int i = 0; i < selected.size(); i++) {
+                notAgain[excluded.length + i] = selected.get(i);
+            }
+            List<NodeData> randomNeighbours = neighbours.selectRandom(count - selected.size(), notAgain);
+            randomPicks.add(randomNeighbours.size());
+            selected.addAll(randomNeighbours);
+        }
+        return selected;
+    }
+
+    /**
+     * Picks distinct candidates for a query, preferring the candidates with the highest score for its terms.
+     *
+     * @param queryTerms terms of the query.
+     * @param candidates distinct neighbours to pick from, the list is reordered.
+     * @param count      number of neighbours to pick.
+     * @return up to count candidates, fewer if there are not enough.
+     */
+    public List<NodeData> select(Collection<String> queryTerms, List<NodeData> candidates, int count) {
+        boolean learned = maxTerms != 0 && !queryTerms.isEmpty() && !routes.isEmpty();
+        double[] scores = learned ? score(queryTerms, candidates) : new double[candidates.size()];
+        Random random = ThreadLocalRandom.current();
+        List<NodeData> selected = new ArrayList<NodeData>(Math.min(count, candidates.size()));
+        int remaining = candidates.size();
+        while (selected.size() < count && remaining > 0) {
+            int pick = -1;
+            if (learned && random.nextDouble() >= exploration) {
+                for (int i = 0; i < remaining; i++) {
+                    if (scores[i] > 0 && (pick < 0 || scores[i] > scores[pick])) {
+                        pick = i;
+                    }
+                }
+            }
+            if (pick >= 0) {
+                learnedPicks.increment();
+            } else {
+                pick = random.nextInt(remaining);
+                randomPicks.increment();
+            }
+            selected.add(candidates.get(pick));
+            // The last candidate takes the place of the picked one.
+            remaining--;
+            candidates.set(pick, candidates.get(remaining));
+            scores[pick] = scores[remaining];
+        }
+        return selected;
+    }
+
+    /**
+     * @return decayed score of the neighbour for the term, 0 if the term has no route to it.
+     */
+    public double score(String term, NodeData neighbour) {
+        TermRoutes termRoutes = routes.get(term);
+        return termRoutes == null ? 0 : termRoutes.score(neighbour.getKey(), clock.getAsLong(), decayPerMilli);
+    }
+
+    /**
+     * @return number of terms with routes.
+     */
+    public int size() {
+        return routes.size();
+    }
+
+    // decayed score of each candidate, summed over the query terms
+    private double[] score(Collection<String> queryTerms, List<NodeData> candidates) {
+        double[] scores = new double[candidates.size()];
+        long now = clock.getAsLong();
+        for (String term : queryTerms) {
+            TermRoutes termRoutes = routes.get(term);
+            if (termRoutes == null) {
+                continue;
+            }
+            for (int i = 0; i < scores.length; i++) {
+                scores[i] += termRoutes.score(candidates.get(i).getKey(), now, decayPerMilli);
+            }
+        }
+        return scores;
+    }
+
+    private static int indexOf(long[] keys, int size, long key) {
+        for (int i = 0; i < size; i++) {
+            if (keys[i] == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isExcluded(NodeData node, NodeData[] excluded) {
+        for (NodeData excludedNode : excluded) {
+            if (node.equals(excludedNode)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Scores of the neighbours for one term, in parallel arrays. Each score is stored with the time it was
+     * last updated and decayed when it is read. Routes are never changed once published, adding a score
+     * creates new routes.
+     */
+    private static final class TermRoutes {
+
+        static final TermRoutes EMPTY = new TermRoutes(new long[0], new double[0], new long[0]);
+
+        final long[] keys;
+        private final double[] scores;
+        private final long[] updated;
+
+        private TermRoutes(long[] keys, double[] scores, long[] updated) {
+            this.keys = keys;
+            this.scores = scores;
+            this.updated = updated;
+        }
+
+        double score(long key, long now, double decayPerMilli) {
+            int index = indexOf(keys, keys.length, key);
+            return index < 0 ? 0 : decayed(index, now, decayPerMilli);
+        }
+
+        TermRoutes add(long key, double amount, long now, double decayPerMilli) {
+            int index = indexOf(keys, keys.length, key);
+            int size = index < 0 && keys.length < NEIGHBOURS_PER_TERM ? keys.length + 1 : keys.length;
+            long[] newKeys = Arrays.copyOf(keys, size);
+            double[] newScores = new double[size];
+            long[] newUpdated = new long[size];
+            for (int i = 0; i < keys.length; i++) {
+                newScores[i] = decayed(i, now, decayPerMilli);
+                newUpdated[i] = now;
+            }
+            if (index < 0) {
+                if (size > keys.length) {
+                    index = keys.length;
+                } else {
+                    // Full, the lowest score is replaced.
+                    index = 0;
+                    for (int i = 1; i < size; i++) {
+                        if (newScores[i] < newScores[index]) {
+                            index = i;
+                        }
+                    }
+                }
+                newKeys[index] = key;
+                newScores[index] = 0;
+                newUpdated[index] = now;
+            }
+            newScores[index] += amount;
+            return new TermRoutes(newKeys, newScores, newUpdated);
+        }
+
+        double decayed(int index, long now, double decayPerMilli) {
+            return scores[index] * Math.exp(-decayPerMilli * Math.max(0, now - updated[index]));
+        }
+    }
+}
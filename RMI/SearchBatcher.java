@@ -0,0 +1,240 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Collects the search requests and responses going to the same node and sends them in one remote call,
+ * so that bursts of searches share the marshalling and connection costs.
+ * Each node has at most one call of requests and one of responses in flight. Whatever is queued meanwhile
+ * is sent as the next batch as soon as the call returns. An idle node gets a batch once it is full or
+ * the batch delay has passed, whichever comes first. Batches the executor drops and items beyond the limit of
+ * a node are counted, what is still waiting is sent after a short pause.
+ */
+public class SearchBatcher {
+
+    // Time in milliseconds before the next batch to a node whose last batch the executor dropped.
+    private static final long RETRY_DELAY = 50;
+
+    private final RemoteCallExecutor remoteCalls;
+    private final int maxBatchSize;
+    private final long delay;
+    private final int maxPending;
+    private final LongAdder droppedBatches;
+    private final LongAdder droppedItems;
+    private final ConcurrentHashMap<Long, Outbox<SearchRequest>> requestOutboxes = new ConcurrentHashMap<Long, Outbox<SearchRequest>>();
+    private final ConcurrentHashMap<Long, Outbox<SearchResponse>> responseOutboxes = new ConcurrentHashMap<Long, Outbox<SearchResponse>>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "rmi-search-batcher");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * @param remoteCalls  executor the batches are sent with.
+     * @param maxBatchSize number of requests or responses sent in one call at most.
+     * @param delay        time in milliseconds a batch to an idle node waits for more, 0 to send at once.
+     * @param maxPending   number of requests or responses waiting for one node, further ones are dropped.
+     * @param metrics      registry the dropped batches and items are counted in.
+     */
+    public SearchBatcher(RemoteCallExecutor remoteCalls, int maxBatchSize, long delay, int maxPending, MetricsRegistry metrics) {
+        this.remoteCalls = remoteCalls;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.delay = delay;
+        this.maxPending = Math.max(1, maxPending);
+        this.droppedBatches = metrics.counter("rmi.batches.dropped");
+        this.droppedItems = metrics.counter("rmi.batch.items.dropped");
+    }
+
+    /**
+     * Queues a search request to the node.
+     */
+    public void search(NodeData peer, SearchRequest request) {
+        while (true) {
+            Outbox<SearchRequest> outbox = requestOutboxes.get(peer.getKey());
+            if (outbox == null) {
+                Outbox<SearchRequest> newOutbox = new Outbox<SearchRequest>(peer, requestOutboxes, "search batch") {
+                    void send(RemoteMethod stub, List<SearchRequest> batch) throws RemoteException {
+                        stub.searchBatch(batch);
+                    }
+                };
+                outbox = requestOutboxes.putIfAbsent(peer.getKey(), newOutbox);
+                if (outbox == null) {
+                    outbox = newOutbox;
+                }
+            }
+            if (outbox.add(request)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drops the queued requests of a query to the node.
+     *
+     * @return number of requests dropped.
+     */
+    public int cancel(NodeData peer, final long queryId) {
+        Outbox<SearchRequest> outbox = requestOutboxes.get(peer.getKey());
+        if (outbox == null) {
+            return 0;
+        }
+        return outbox.remove(new Predicate<SearchRequest>() {
+            public boolean test(SearchRequest request) {
+                return request.getQueryId() == queryId;
+            }
+        });
+    }
+
+    /**
+     * Queues a search response to the searching node.
+     */
+    public void searchSuccess(NodeData peer, SearchResponse response) {
+        while (true) {
+            Outbox<SearchResponse> outbox = responseOutboxes.get(peer.getKey());
+            if (outbox == null) {
+                Outbox<SearchResponse> newOutbox = new Outbox<SearchResponse>(peer, responseOutboxes, "search success batch") {
+                    void send(RemoteMethod stub, List<SearchResponse> batch) throws RemoteException {
+                        stub.searchSuccessBatch(batch);
+                    }
+                };
+                outbox = responseOutboxes.putIfAbsent(peer.getKey(), newOutbox);
+                if (outbox == null) {
+                    outbox = newOutbox;
+                }
+            }
+            if (outbox.add(response)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Requests or responses waiting to be sent to one node.
+     */
+    private abstract class Outbox<T> {
+
+        private final NodeData peer;
+        private final ConcurrentHashMap<Long, Outbox<T>> outboxes;
+        private final String description;
+        private List<T> pending = new ArrayList<T>();
+        private boolean inFlight = false;
+        private boolean flushScheduled = false;
+        private boolean retired = false;
+
+        Outbox(NodeData peer, ConcurrentHashMap<Long, Outbox<T>> outboxes, String description) {
+            this.peer = peer;
+            this.outboxes = outboxes;
+            this.description = description;
+        }
+
+        abstract void send(RemoteMethod stub, List<T> batch) throws RemoteException;
+
+        // returns false if the outbox was retired, the item then belongs in a new outbox
+        synchronized boolean add(T item) {
+            if (retired) {
+                return false;
+            }
+            if (pending.size() >= maxPending) {
+                droppedItems.increment();
+                Log.warn("Too many queued calls to {}, dropping {} item", peer, description);
+                return true;
+            }
+            pending.add(item);
+            if (inFlight) {
+                return true;
+            }
+            if (pending.size() >= maxBatchSize || delay <= 0) {
+                sendNext();
+            } else {
+                scheduleFlush(delay);
+            }
+            return true;
+        }
+
+        synchronized int remove(Predicate<T> filter) {
+            int removed = 0;
+            Iterator<T> iterator = pending.iterator();
+            while (iterator.hasNext()) {
+                if (filter.test(iterator.next())) {
+                    iterator.remove();
+                    removed++;
+                }
+            }
+            return removed;
+        }
+
+        synchronized void flush() {
+            flushScheduled = false;
+            if (!inFlight) {
+                sendNext();
+            }
+        }
+
+        synchronized void done() {
+            inFlight = false;
+            sendNext();
+        }
+
+        // schedules a flush unless one is pending, called with the outbox locked
+        private void scheduleFlush(long delayMillis) {
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+            timer.schedule(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        // sends the next batch, called with the outbox locked
+        private void sendNext() {
+            if (pending.isEmpty()) {
+                if (!flushScheduled) {
+                    // An idle node is forgotten, a later item creates a new outbox. Items still on their way to
+                    // this one see it retired and go to the new outbox as well.
+                    retired = true;
+                    outboxes.remove(peer.getKey(), this);
+                }
+                return;
+            }
+            final List<T> batch;
+            if (pending.size() <= maxBatchSize) {
+                batch = pending;
+                pending = new ArrayList<T>();
+            } else {
+                batch = new ArrayList<T>(pending.subList(0, maxBatchSize));
+                pending.subList(0, maxBatchSize).clear();
+            }
+            inFlight = true;
+            boolean submitted = remoteCalls.submit(peer, description + " of " + batch.size(), new RemoteCallExecutor.RemoteCall() {
+                public void call(RemoteMethod stub) throws RemoteException {
+                    send(stub, batch);
+                }
+            }, new Runnable() {
+                public void run() {
+                    done();
+                }
+            });
+            if (!submitted) {
+                inFlight = false;
+                droppedBatches.increment();
+                droppedItems.add(batch.size());
+                if (!pending.isEmpty()) {
+                    scheduleFlush(Math.max(delay, RETRY_DELAY));
+                }
+            }
+        }
+    }
+}
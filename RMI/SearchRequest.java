@@ -0,0 +1,72 @@
+import java.io.Serializable;
+
+/**
+ * A search query as passed between nodes in {@link RemoteMethod#searchBatch(java.util.List)}.
+ */
+public class SearchRequest implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String query;
+    private final long queryId;
+    private final String searchNodeIP;
+    private final int searchNodePort;
+    private final String neighborIP;
+    private final int neighborPort;
+    private final int hops;
+    private final boolean walk;
+
+    /**
+     * @param query          canonical search query.
+     * @param queryId        unique id of the query.
+     * @param searchNodeIP   IP address of the searching node.
+     * @param searchNodePort port of the searching node.
+     * @param neighborIP     IP address of the node sending this request.
+     * @param neighborPort   port of the node sending this request.
+     * @param hops           remaining hops.
+     * @param walk           true for a random walker, which each node forwards to a single neighbour.
+     */
+    public SearchRequest(String query, long queryId, String searchNodeIP, int searchNodePort, String neighborIP, int neighborPort,
+                         int hops, boolean walk) {
+        this.query = query;
+        this.queryId = queryId;
+        this.searchNodeIP = searchNodeIP;
+        this.searchNodePort = searchNodePort;
+        this.neighborIP = neighborIP;
+        this.neighborPort = neighborPort;
+        this.hops = hops;
+        this.walk = walk;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public long getQueryId() {
+        return queryId;
+    }
+
+    public String getSearchNodeIP() {
+        return searchNodeIP;
+    }
+
+    public int getSearchNodePort() {
+        return searchNodePort;
+    }
+
+    public String getNeighborIP() {
+        return neighborIP;
+    }
+
+    public int getNeighborPort() {
+        return neighborPort;
+    }
+
+    public int getHops() {
+        return hops;
+    }
+
+    public boolean isWalk() {
+        return walk;
+    }
+}
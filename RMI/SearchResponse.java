@@ -0,0 +1,52 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The answer of an owner node to a search query as passed in {@link RemoteMethod#searchSuccessBatch(List)}.
+ */
+public class SearchResponse implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long queryId;
+    private final String ownerIP;
+    private final int ownerPort;
+    private final ArrayList<String> matchingFileNames;
+    private final int hops;
+
+    /**
+     * @param queryId           id of the answered query.
+     * @param ownerIP           IP address of the node owning the files.
+     * @param ownerPort         port of the node owning the files.
+     * @param matchingFileNames names of the matching files.
+     * @param hops              remaining hops of the query when it was answered.
+     */
+    public SearchResponse(long queryId, String ownerIP, int ownerPort, List<String> matchingFileNames, int hops) {
+        this.queryId = queryId;
+        this.ownerIP = ownerIP;
+        this.ownerPort = ownerPort;
+        this.matchingFileNames = new ArrayList<String>(matchingFileNames);
+        this.hops = hops;
+    }
+
+    public long getQueryId() {
+        return queryId;
+    }
+
+    public String getOwnerIP() {
+        return ownerIP;
+    }
+
+    public int getOwnerPort() {
+        return ownerPort;
+    }
+
+    public List<String> getMatchingFileNames() {
+        return matchingFileNames;
+    }
+
+    public int getHops() {
+        return hops;
+    }
+}
@@ -5,10 +5,12 @@ import java.util.List;
  */
 public class SearchResult {
     private boolean isSuccess;
+    private long queryId = 0;
     private List<String> matchingFileNames;
     private NodeData ownerNode;
     private List<NodeData> selectedNeighbours;
     private int hopCount = 0;
+    private int remainingHops = 0;
 
     public boolean isSuccess() {
         return isSuccess;
@@ -34,6 +36,17 @@ public class SearchResult {
         isSuccess = success;
     }
 
+    /**
+     * @return id of the query this result answers, 0 if the owner node did not send it back.
+     */
+    public long getQueryId() {
+        return queryId;
+    }
+
+    public void setQueryId(long queryId) {
+        this.queryId = queryId;
+    }
+
     public NodeData getOwnerNode() {
         return ownerNode;
     }
@@ -50,4 +63,15 @@ public class SearchResult {
     public void setHopCount(int hopCount) {
         this.hopCount = hopCount;
     }
+
+    /**
+     * @return hops the query had left when it reached the owner node.
+     */
+    public int getRemainingHops() {
+        return remainingHops;
+    }
+
+    public void setRemainingHops(int remainingHops) {
+        this.remainingHops = remainingHops;
+    }
 }
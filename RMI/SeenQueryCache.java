@@ -0,0 +1,63 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded set of recently seen query ids.
+ * Entries expire after the configured time to live, and the oldest entry is evicted when the set is full,
+ * so the memory used stays constant no matter how many queries pass through the node.
+ */
+public class SeenQueryCache {
+
+    private final int maxSize;
+    private final long timeToLive;
+    private final LinkedHashMap<Long, Long> seenTimes = new LinkedHashMap<Long, Long>();
+
+    /**
+     * @param maxSize    maximum number of query ids remembered.
+     * @param timeToLive time in milliseconds a query id is remembered.
+     */
+    public SeenQueryCache(int maxSize, long timeToLive) {
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Marks the query id as seen.
+     *
+     * @param queryId query id, 0 for queries from nodes which do not send ids.
+     * @return false if the query id was already seen and the query is a duplicate.
+     */
+    public synchronized boolean markSeen(long queryId) {
+        if (queryId == 0) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        expire(now);
+        if (seenTimes.containsKey(queryId)) {
+            return false;
+        }
+        seenTimes.put(queryId, now);
+        if (seenTimes.size() > maxSize) {
+            Iterator<Long> iterator = seenTimes.keySet().iterator();
+            iterator.next();
+            iterator.remove();
+        }
+        return true;
+    }
+
+    public synchronized int size() {
+        return seenTimes.size();
+    }
+
+    // entries are in insertion order, so expired ones are at the head
+    private void expire(long now) {
+        Iterator<Map.Entry<Long, Long>> iterator = seenTimes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().getValue() < timeToLive) {
+                break;
+            }
+            iterator.remove();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of the remote method stubs of other nodes, keyed by the packed address of the node
+ * (see {@link NodeData#getKey()}), so that the registry of a node is only asked once instead of on every call.
+ * Callers must invalidate the stub of a node when a call to it fails or the node leaves, the next call then
+ * looks it up again.
+ */
+public class StubCache {
+
+    private static final String REMOTE_METHOD_NAME = "RemoteMethod";
+    private static final int PREFETCH_ATTEMPTS = 3;
+    private static final long PREFETCH_RETRY_DELAY = 1000;
+
+    private final int maxSize;
+    private final ConcurrentHashMap<Long, RemoteMethod> stubs = new ConcurrentHashMap<Long, RemoteMethod>();
+    private final ScheduledExecutorService prefetcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "rmi-stub-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final LongAdder hits;
+    private final LongAdder misses;
+
+    /**
+     * @param maxSize maximum number of stubs kept.
+     * @param metrics registry the hits and misses of the cache are counted in.
+     */
+    public StubCache(int maxSize, MetricsRegistry metrics) {
+        this.maxSize = Math.max(1, maxSize);
+        this.hits = metrics.counter("stub.cache.hits");
+        this.misses = metrics.counter("stub.cache.misses");
+    }
+
+    /**
+     * @return stub of the node, looked up from its registry if it is not cached.
+     */
+    public RemoteMethod get(NodeData nodeData) throws RemoteException, NotBoundException {
+        RemoteMethod stub = stubs.get(nodeData.getKey());
+        if (stub != null) {
+            hits.increment();
+            return stub;
+        }
+        misses.increment();
+        Registry registry = LocateRegistry.getRegistry(nodeData.getIP(), nodeData.getPort());
+        stub = (RemoteMethod) registry.lookup(REMOTE_METHOD_NAME);
+        if (stubs.size() >= maxSize) {
+            // Any entry will do, nodes which are still in use are looked up again on their next call.
+            Iterator<Long> iterator = stubs.keySet().iterator();
+            if (iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+        stubs.put(nodeData.getKey(), stub);
+        return stub;
+    }
+
+    /**
+     * Looks up the stub of the node in the background. A joining node binds its registry only after it has
+     * joined its neighbours, so failed lookups are retried a few times before giving up.
+     */
+    public void prefetch(NodeData nodeData) {
+        prefetch(nodeData, 1, 0);
+    }
+
+    /**
+     * Forgets the stub of the node.
+     */
+    public void invalidate(NodeData nodeData) {
+        stubs.remove(nodeData.getKey());
+    }
+
+    private void prefetch(final NodeData nodeData, final int attempt, long delay) {
+        prefetcher.schedule(new Runnable() {
+            public void run() {
+                if (stubs.containsKey(nodeData.getKey())) {
+                    return;
+                }
+                try {
+                    get(nodeData);
+                } catch (Exception e) {
+                    if (attempt < PREFETCH_ATTEMPTS) {
+                        prefetch(nodeData, attempt + 1, PREFETCH_RETRY_DELAY);
+                    } else {
+                        Log.warn("Could not prefetch the stub of {}: {}", nodeData, e);
+                    }
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,134 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of resolved socket addresses, keyed by the key of the peer
+ * (see {@link NodeData#getKey()}). Peers are resolved once and the same {@link InetSocketAddress} is handed out
+ * afterwards, so sending a datagram never parses or looks up the address again.
+ * Only IPv4 addresses are kept, built from their bytes without a name service lookup. Host names, such as the one
+ * of the bootstrap server, are looked up once through {@link #lookup(String, int)} by whoever configured them.
+ * When the cache is full the CLOCK algorithm evicts an address which was not used since the hand last passed it.
+ */
+public class AddressCache {
+
+    private final int maxSize;
+    private final ConcurrentHashMap<Long, Entry> addresses = new ConcurrentHashMap<Long, Entry>();
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+    // Hand of the clock, only moved while holding the lock of the cache.
+    private Iterator<Map.Entry<Long, Entry>> hand;
+
+    /**
+     * @param maxSize maximum number of addresses kept.
+     * @param metrics registry the hits, misses and evictions of the cache are counted in.
+     */
+    public AddressCache(int maxSize, MetricsRegistry metrics) {
+        this.maxSize = Math.max(1, maxSize);
+        this.hits = metrics.counter("address.cache.hits");
+        this.misses = metrics.counter("address.cache.misses");
+        this.evictions = metrics.counter("address.cache.evictions");
+    }
+
+    /**
+     * Looks up a host name through the name service. Meant for configured peers, which are looked up once
+     * rather than on every datagram sent to them.
+     *
+     * @return resolved address.
+     * @throws IllegalArgumentException if the host name does not resolve.
+     */
+    public static InetSocketAddress lookup(String host, int port) {
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if (address.isUnresolved()) {
+            throw new IllegalArgumentException("Could not resolve " + host);
+        }
+        return address;
+    }
+
+    /**
+     * @return resolved address of the node, which is also kept in the node for the next call.
+     */
+    public InetSocketAddress get(NodeData nodeData) {
+        InetSocketAddress address = nodeData.getSocketAddress();
+        if (address != null) {
+            hits.increment();
+            return address;
+        }
+        address = get(nodeData.getKey() >>> 16, nodeData.getPort());
+        nodeData.setSocketAddress(address);
+        return address;
+    }
+
+    /**
+     * @param ipv4 packed IPv4 address, see {@link NodeData#parseIPv4(String)}.
+     * @return resolved address.
+     * @throws IllegalArgumentException if the address or the port is out of range.
+     */
+    public InetSocketAddress get(long ipv4, int port) {
+        if (ipv4 < 0 || ipv4 > 0xFFFFFFFFL || !NodeData.isPort(port)) {
+            throw new IllegalArgumentException("Not an IPv4 socket address: " + ipv4 + ":" + port);
+        }
+        long key = (ipv4 << 16) | port;
+        Entry entry = addresses.get(key);
+        if (entry != null) {
+            entry.referenced = true;
+            hits.increment();
+            return entry.address;
+        }
+        misses.increment();
+        if (addresses.size() >= maxSize) {
+            evict();
+        }
+        entry = new Entry(resolve(ipv4, port));
+        Entry existing = addresses.putIfAbsent(key, entry);
+        return existing != null ? existing.address : entry.address;
+    }
+
+    // Moves the hand until it finds an address which was not used since the last round, which it evicts.
+    // Used addresses get a second chance, so the loop ends within two rounds.
+    private synchronized void evict() {
+        while (addresses.size() >= maxSize) {
+            if (hand == null || !hand.hasNext()) {
+                hand = addresses.entrySet().iterator();
+                if (!hand.hasNext()) {
+                    return;
+                }
+            }
+            Entry entry = hand.next().getValue();
+            if (entry.referenced) {
+                entry.referenced = false;
+            } else {
+                hand.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    private static InetSocketAddress resolve(long ipv4, int port) {
+        byte[] bytes = {(byte) (ipv4 >>> 24), (byte) (ipv4 >>> 16), (byte) (ipv4 >>> 8), (byte) ipv4};
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(bytes), port);
+        } catch (UnknownHostException e) {
+            // Not possible for a 4 byte address.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Cached address with the reference bit of the clock.
+     */
+    private static class Entry {
+
+        private final InetSocketAddress address;
+        private volatile boolean referenced;
+
+        private Entry(InetSocketAddress address) {
+            this.address = address;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Bloom filter of the terms in the file names of a node, which it publishes to its neighbours as a summary of
+ * its catalog. A term which was added is always reported as contained, a term which was not is reported as
+ * contained with about the false positive rate the filter was sized for.
+ * The k bit positions of a term are derived from one 64 bit hash with double hashing.
+ * In the text protocol the bits are written as one hexadecimal token of 16 digits per 64 bit word, and the
+ * number of words is capped so that the message fits in a datagram.
+ */
+public class BloomFilter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Largest filter in 64 bit words, whose hexadecimal form still fits in a datagram of the text protocol.
+     */
+    public static final int MAX_WORDS = 512;
+
+    private final long[] words;
+    private final int hashes;
+
+    /**
+     * Creates an empty filter sized for the given number of terms.
+     *
+     * @param expectedTerms     number of terms which will be added.
+     * @param falsePositiveRate probability of reporting a term which was not added, between 0 and 1.
+     */
+    public BloomFilter(int expectedTerms, double falsePositiveRate) {
+        int terms = Math.max(1, expectedTerms);
+        double rate = Math.min(0.5, Math.max(1e-9, falsePositiveRate));
+        double bits = -terms * Math.log(rate) / (Math.log(2) * Math.log(2));
+        int wordCount = (int) Math.min(MAX_WORDS, Math.max(1, Math.ceil(bits / 64)));
+        this.words = new long[wordCount];
+        this.hashes = Math.max(1, Math.min(16, (int) Math.round(64.0 * wordCount / terms * Math.log(2))));
+    }
+
+    private BloomFilter(long[] words, int hashes) {
+        this.words = words;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Restores a filter from its hexadecimal form.
+     *
+     * @param hex    bits as written by {@link #toHex()}.
+     * @param hashes number of bit positions per term.
+     * @throws IllegalArgumentException if the filter is malformed.
+     */
+    public static BloomFilter fromHex(String hex, int hashes) {
+        if (hex.isEmpty() || hex.length() % 16 != 0 || hex.length() / 16 > MAX_WORDS) {
+            throw new IllegalArgumentException("Invalid filter length " + hex.length());
+        }
+        if (hashes < 1 || hashes > 16) {
+            throw new IllegalArgumentException("Invalid number of hashes " + hashes);
+        }
+        long[] words = new long[hex.length() / 16];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = Long.parseUnsignedLong(hex.substring(i * 16, i * 16 + 16), 16);
+        }
+        return new BloomFilter(words, hashes);
+    }
+
+    public void add(String term) {
+        long hash = hash(term);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long bitCount = 64L * words.length;
+        for (int i = 0; i < hashes; i++) {
+            int bit = (int) (((h1 + i * h2) & 0xFFFFFFFFL) % bitCount);
+            words[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @return false if the term was definitely not added.
+     */
+    public boolean mightContain(String term) {
+        long hash = hash(term);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long bitCount = 64L * words.length;
+        for (int i = 0; i < hashes; i++) {
+            int bit = (int) (((h1 + i * h2) & 0xFFFFFFFFL) % bitCount);
+            if ((words[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of bit positions per term.
+     */
+    public int getHashes() {
+        return hashes;
+    }
+
+    public int getBitCount() {
+        return 64 * words.length;
+    }
+
+    /**
+     * @return the bits as 16 hexadecimal digits per 64 bit word.
+     */
+    public String toHex() {
+        StringBuilder hex = new StringBuilder(words.length * 16);
+        for (long word : words) {
+            String digits = Long.toHexString(word);
+            for (int i = digits.length(); i < 16; i++) {
+                hex.append('0');
+            }
+            hex.append(digits);
+        }
+        return hex.toString();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof BloomFilter)) {
+            return false;
+        }
+        BloomFilter other = (BloomFilter) obj;
+        return hashes == other.hashes && Arrays.equals(words, other.words);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(words) + hashes;
+    }
+
+    // rejects received filters which could not have been created here
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (words == null || words.length == 0 || words.length > MAX_WORDS || hashes < 1 || hashes > 16) {
+            throw new InvalidObjectException("Invalid Bloom filter");
+        }
+    }
+
+    // 64 bit FNV-1a of the characters, with the finalizer of MurmurHash3 to spread the bits
+    private static long hash(String term) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < term.length(); i++) {
+            hash ^= term.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
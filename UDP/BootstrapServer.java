@@ -0,0 +1,174 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Stand-in for the bootstrap server of the course, to run networks of nodes on a single machine.
+ * It speaks the same REG and UNREG protocol over UDP. A registering node gets up to {@link #DEFAULT_PEERS}
+ * randomly chosen nodes registered before it, or one of the error codes of REGOK:
+ * <ul>
+ * <li>9999 - the request could not be understood.</li>
+ * <li>9998 - the node is already registered with the same username, it should unregister first.</li>
+ * <li>9997 - the address is registered by another username.</li>
+ * <li>9996 - the server is full.</li>
+ * </ul>
+ * UNREG is answered with UNROK 0, or UNROK 9999 if the node was not registered.
+ * Requests are handled one at a time on a single thread with reused buffers, the registered nodes are kept
+ * in an array list so that random peers are picked without copying it.
+ * <p>
+ * Usage: {@code java BootstrapServer [port] [max nodes] [peers]}, the port defaults to 'bootstrap.port'.
+ */
+public class BootstrapServer {
+
+    public static final int DEFAULT_MAX_NODES = 10000;
+    public static final int DEFAULT_PEERS = 2;
+
+    private final int maxNodes;
+    private final int peers;
+    private final List<NodeData> nodes = new ArrayList<NodeData>();
+    private final Map<NodeData, Integer> indexes = new HashMap<NodeData, Integer>();
+
+    /**
+     * @param maxNodes number of nodes registered at most.
+     * @param peers    number of registered nodes given to a registering node, at most 4 which the nodes accept.
+     */
+    public BootstrapServer(int maxNodes, int peers) {
+        this.maxNodes = maxNodes;
+        this.peers = Math.max(0, Math.min(4, peers));
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : Configuration.BOOTSTRAP_PORT;
+        int maxNodes = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_MAX_NODES;
+        int peers = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_PEERS;
+        new BootstrapServer(maxNodes, peers).serve(port);
+    }
+
+    /**
+     * Handles requests on the given port until the thread is interrupted.
+     */
+    public void serve(int port) throws IOException {
+        DatagramSocket socket = new DatagramSocket(port);
+        Log.info("Bootstrap server listening on port {}", port);
+        ByteBuffer request = ByteBuffer.allocate(Configuration.DATAGRAM_SIZE);
+        ByteBuffer response = ByteBuffer.allocate(Configuration.DATAGRAM_SIZE);
+        DatagramPacket incoming = new DatagramPacket(request.array(), request.capacity());
+        DatagramPacket outgoing = new DatagramPacket(response.array(), 0);
+        Message message = new Message();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                incoming.setLength(request.capacity());
+                socket.receive(incoming);
+                request.clear();
+                request.limit(incoming.getLength());
+                handle(request, message, response);
+                outgoing.setData(response.array(), 0, response.limit());
+                outgoing.setSocketAddress(incoming.getSocketAddress());
+                socket.send(outgoing);
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Handles a request and encodes the response.
+     *
+     * @param request  received datagram.
+     * @param message  message to decode the request in to.
+     * @param response buffer the response is encoded in to.
+     */
+    public void handle(ByteBuffer request, Message message, ByteBuffer response) {
+        try {
+            MessageCodec.decode(request, message);
+        } catch (IllegalArgumentException e) {
+            Log.debug("Malformed request ({}): {}", message, e.getMessage());
+            if (message.getOpcode() == Message.REG) {
+                MessageCodec.encodeRegisterFailed(response, 9999);
+            } else if (message.getOpcode() == Message.UNREG) {
+                MessageCodec.encodeUnregisterOk(response, 9999);
+            } else {
+                MessageCodec.encodeError(response);
+            }
+            return;
+        }
+        switch (message.getOpcode()) {
+            case Message.REG:
+                register(message, response);
+                break;
+            case Message.UNREG:
+                unregister(message, response);
+                break;
+            default:
+                MessageCodec.encodeError(response);
+                break;
+        }
+    }
+
+    /**
+     * @return number of registered nodes.
+     */
+    public int size() {
+        return nodes.size();
+    }
+
+    private void register(Message message, ByteBuffer response) {
+        String username = message.getQuery();
+        if (username.isEmpty() || message.getIP().isEmpty() || message.getPort() <= 0 || message.getPort() > 0xFFFF) {
+            MessageCodec.encodeRegisterFailed(response, 9999);
+            return;
+        }
+        NodeData node = new NodeData(message.getIP(), message.getPort(), username);
+        Integer index = indexes.get(node);
+        if (index != null) {
+            NodeData registered = nodes.get(index);
+            MessageCodec.encodeRegisterFailed(response, registered.getUsername().equals(username) ? 9998 : 9997);
+            return;
+        }
+        if (nodes.size() >= maxNodes) {
+            MessageCodec.encodeRegisterFailed(response, 9996);
+            return;
+        }
+        MessageCodec.encodeRegisterOk(response, randomNodes());
+        indexes.put(node, nodes.size());
+        nodes.add(node);
+        Log.debug("Registered {} as {}, {} nodes", node, username, nodes.size());
+    }
+
+    private void unregister(Message message, ByteBuffer response) {
+        NodeData node = new NodeData(message.getIP(), message.getPort(), null);
+        Integer index = indexes.remove(node);
+        if (index == null) {
+            MessageCodec.encodeUnregisterOk(response, 9999);
+            return;
+        }
+        // The last node takes the place of the removed one.
+        NodeData last = nodes.remove(nodes.size() - 1);
+        if (index < nodes.size()) {
+            nodes.set(index, last);
+            indexes.put(last, index);
+        }
+        MessageCodec.encodeUnregisterOk(response, 0);
+        Log.debug("Unregistered {}, {} nodes", node, nodes.size());
+    }
+
+    // distinct registered nodes picked at random
+    private List<NodeData> randomNodes() {
+        int count = Math.min(peers, nodes.size());
+        List<NodeData> selected = new ArrayList<NodeData>(count);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (selected.size() < count) {
+            NodeData node = nodes.get(random.nextInt(nodes.size()));
+            if (!selected.contains(node)) {
+                selected.add(node);
+            }
+        }
+        return selected;
+    }
+}
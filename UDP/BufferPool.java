@@ -0,0 +1,63 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of reusable datagram buffers.
+ * A buffer is leased for a receive and released once the datagram has been dispatched. When the pool is empty
+ * a new buffer is allocated and counted as a miss, released buffers beyond the pool capacity are left to the GC.
+ */
+public class BufferPool {
+
+    private final BlockingQueue<ByteBuffer> freeBuffers;
+    private final int bufferSize;
+    private final boolean direct;
+    private final LongAdder hits;
+    private final LongAdder misses;
+
+    /**
+     * @param capacity   maximum number of idle buffers kept in the pool.
+     * @param bufferSize size of each buffer in bytes.
+     * @param direct     true to allocate direct buffers, which do not have a backing array.
+     * @param metrics    registry the hits and misses of the pool are counted in.
+     */
+    public BufferPool(int capacity, int bufferSize, boolean direct, MetricsRegistry metrics) {
+        this.freeBuffers = new ArrayBlockingQueue<ByteBuffer>(capacity);
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.hits = metrics.counter("buffer.pool.hits");
+        this.misses = metrics.counter("buffer.pool.misses");
+    }
+
+    /**
+     * Leases a cleared buffer from the pool.
+     *
+     * @return buffer with position 0 and limit set to the buffer size.
+     */
+    public ByteBuffer lease() {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer == null) {
+            misses.increment();
+            return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+        hits.increment();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a leased buffer to the pool. The buffer must not be used by the caller afterwards.
+     *
+     * @param buffer buffer obtained from {@link #lease()}.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.capacity() == bufferSize) {
+            freeBuffers.offer(buffer);
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
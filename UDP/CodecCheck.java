@@ -0,0 +1,242 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Self-check of the message codec: text and binary round trips of the messages nodes exchange, text messages
+ * of older nodes which send no query ids, the query id after the file names of a text SEROK, file names
+ * which do not fit in a datagram, and the cache of the addresses messages are sent to.
+ * Run with {@code java CodecCheck} from the compiled folder.
+ */
+public class CodecCheck {
+
+    private static final long QUERY_ID = 1234567890123L;
+    private static final long IPV4 = NodeData.parseIPv4("192.168.1.10");
+
+    public static void main(String[] args) {
+        checkAddresses();
+        checkAddressCache();
+        checkNodeMessages();
+        checkSearch();
+        checkSearchOk();
+        checkTruncation();
+        checkInvalid();
+        Checks.report("CodecCheck");
+    }
+
+    private static void checkAddresses() {
+        Checks.equal(0xC0A8010AL, IPV4, "IPv4 literal");
+        Checks.equal(0L, NodeData.parseIPv4("0.0.0.0"), "zero address");
+        Checks.equal(0xFFFFFFFFL, NodeData.parseIPv4("255.255.255.255"), "broadcast address");
+        String[] invalid = {"", "1.2.3", "1.2.3.4.5", "256.1.1.1", "1..2.3", "1.2.3.", "localhost", "1.2.3.4 "};
+        for (String ip : invalid) {
+            Checks.equal(-1L, NodeData.parseIPv4(ip), "not an IPv4 literal \"" + ip + "\"");
+        }
+        Checks.equal((IPV4 << 16) | 8080, new NodeData("192.168.1.10", 8080, null).getKey(), "IPv4 key");
+        Checks.equal(new NodeData("10.0.0.1", 80, null), new NodeData("010.0.0.01", 80, null), "leading zeros");
+        Checks.isTrue(!new NodeData("10.0.0.1", 80, null).equals(new NodeData("10.0.0.1", 81, null)), "ports differ");
+        String[][] invalidNodes = {{"localhost", "8080"}, {"10.0.0.1", "70000"}, {"10.0.0.1", "-1"}};
+        for (final String[] node : invalidNodes) {
+            Checks.throwsIllegalArgument(new Runnable() {
+                public void run() {
+                    new NodeData(node[0], Integer.parseInt(node[1]), null);
+                }
+            }, "invalid node " + node[0] + ":" + node[1]);
+        }
+    }
+
+    // The clock spares addresses used since it last passed them, and evicts the others.
+    private static void checkAddressCache() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        final AddressCache cache = new AddressCache(2, metrics);
+        Checks.equal("/192.168.1.10:8080", cache.get(IPV4, 8080).toString(), "address built from its bytes");
+        Checks.isTrue(cache.get(IPV4, 8080) == cache.get(IPV4, 8080), "cached address");
+        cache.get(IPV4 + 1, 8080);
+        cache.get(IPV4 + 2, 8080);
+        Checks.equal(1L, metrics.get("address.cache.evictions"), "full cache evicts");
+        long misses = metrics.get("address.cache.misses");
+        cache.get(IPV4, 8080);
+        Checks.equal(misses, metrics.get("address.cache.misses"), "used address is kept");
+        cache.get(IPV4 + 1, 8080);
+        Checks.equal(misses + 1, metrics.get("address.cache.misses"), "unused address is evicted");
+        Checks.throwsIllegalArgument(new Runnable() {
+            public void run() {
+                cache.get(-1, 8080);
+            }
+        }, "address which is not IPv4");
+        Checks.throwsIllegalArgument(new Runnable() {
+            public void run() {
+                cache.get(IPV4, 70000);
+            }
+        }, "port out of range");
+        Checks.throwsIllegalArgument(new Runnable() {
+            public void run() {
+                AddressCache.lookup("no-such-host.invalid", 8080);
+            }
+        }, "host name which does not resolve");
+    }
+
+    private static void checkNodeMessages() {
+        ByteBuffer out = ByteBuffer.allocate(Configuration.DATAGRAM_SIZE);
+        MessageCodec.encodeJoin(out, "192.168.1.10", 8080, true);
+        Message message = decode(out);
+        Checks.equal(Message.JOIN, message.getOpcode(), "JOIN opcode");
+        Checks.equal("192.168.1.10", message.getIP(), "JOIN address");
+        Checks.equal(IPV4, message.getIPv4(), "JOIN packed address");
+        Checks.equal(8080, message.getPort(), "JOIN port");
+        Checks.isTrue(message.isBinaryCapable(), "JOIN offers the binary format");
+
+        MessageCodec.encodeJoin(out, "10.0.0.1", 8080, false);
+        Checks.isTrue(!decode(out).isBinaryCapable(), "JOIN without the binary format");
+
+        message = decode(text("JOINOK 0"));
+        Checks.equal(Message.JOINOK, message.getOpcode(), "JOINOK of an older node");
+        Checks.isTrue(!message.isBinaryCapable(), "JOINOK of an older node offers no binary format");
+
+        MessageCodec.encodeCancel(out, "192.168.1.10", 8080, QUERY_ID);
+        message = decode(out);
+        Checks.equal(Message.CANCEL, message.getOpcode(), "CANCEL opcode");
+        Checks.equal(QUERY_ID, message.getQueryId(), "CANCEL query id");
+        Checks.equal(8080, message.getPort(), "CANCEL port");
+
+        message = decode(text("REGOK 2 10.0.0.1 5001 10.0.0.2 5002"));
+        Checks.equal(2, message.getItemCount(), "REGOK nodes");
+        Checks.equal("10.0.0.2", message.getNodeIP(1), "REGOK node address");
+        Checks.equal(5002, message.getNodePort(1), "REGOK node port");
+        message = decode(text("REGOK 9998"));
+        Checks.equal(9998, message.getValue(), "REGOK error code");
+        Checks.equal(0, message.getItemCount(), "REGOK error has no nodes");
+    }
+
+    private static void checkSearch() {
+        ByteBuffer out = ByteBuffer.allocate(Configuration.DATAGRAM_SIZE);
+        MessageCodec.encodeSearch(out, QUERY_ID, "192.168.1.10", 8080, "(harry OR happy) AND feet", 3, true);
+        Message message = decode(out);
+        Checks.equal(Message.SER, message.getOpcode(), "text SER opcode");
+        Checks.equal("(harry OR happy) AND feet", message.getQuery(), "text SER query");
+        Checks.equal(3, message.getHops(), "text SER hops");
+        Checks.equal(QUERY_ID, message.getQueryId(), "text SER query id");
+        Checks.isTrue(message.isWalk(), "text SER walker");
+
+        MessageCodec.encodeSearchForward(out, message.copy(), 2, true, true);
+        message = decode(out);
+        Checks.isTrue(message.isBinary(), "text SER forwarded in binary");
+        Checks.equal("(harry OR happy) AND feet", message.getQuery(), "forwarded SER query");
+        Checks.equal("192.168.1.10", message.getIP(), "forwarded SER address");
+        Checks.equal(2, message.getHops(), "forwarded SER hops");
+        Checks.equal(QUERY_ID, message.getQueryId(), "forwarded SER query id");
+        Checks.isTrue(message.isWalk() && message.isOriginBinary(), "forwarded SER flags");
+
+        MessageCodec.encodeSearchForward(out, message.copy(), 1, false, false);
+        message = decode(out);
+        Checks.isTrue(!message.isBinary(), "binary SER forwarded in text");
+        Checks.equal("(harry OR happy) AND feet", message.getQuery(), "SER query forwarded back in text");
+        Checks.equal(1, message.getHops(), "SER hops forwarded back in text");
+        Checks.equal(QUERY_ID, message.getQueryId(), "SER query id forwarded back in text");
+
+        MessageCodec.encodeSearchBinary(out, QUERY_ID, false, IPV4, 8080, "caf\u00e9", 5, false);
+        message = decode(out);
+        Checks.isTrue(message.isBinary(), "binary SER");
+        Checks.equal("caf\u00e9", message.getQuery(), "binary SER query");
+        Checks.equal("192.168.1.10", message.getIP(), "binary SER address");
+        Checks.equal(8080, message.getPort(), "binary SER port");
+        Checks.equal(5, message.getHops(), "binary SER hops");
+        Checks.isTrue(!message.isWalk() && !message.isOriginBinary(), "binary SER flags");
+
+        message = decode(text("SER 10.0.0.1 5001 \"happy feet\" 2"));
+        Checks.equal("happy feet", message.getQuery(), "SER of an older node");
+        Checks.equal(0L, message.getQueryId(), "SER of an older node has no query id");
+        message = decode(text("SER 10.0.0.1 5001 happy feet 2"));
+        Checks.equal("happy feet", message.getQuery(), "unquoted SER query");
+        Checks.equal(2, message.getHops(), "unquoted SER hops");
+    }
+
+    private static void checkSearchOk() {
+        ByteBuffer out = ByteBuffer.allocate(Configuration.DATAGRAM_SIZE);
+        List<String> fileNames = Arrays.asList("Happy Feet", "2012", "Caf\u00e9 de Flore");
+        Checks.equal(3, MessageCodec.encodeSearchOk(out, QUERY_ID, "192.168.1.10", 8080, 2, fileNames), "text SEROK names");
+        Message message = decode(out);
+        Checks.equal(Message.SEROK, message.getOpcode(), "text SEROK opcode");
+        Checks.equal(fileNames, fileNames(message), "text SEROK names");
+        Checks.equal(QUERY_ID, message.getQueryId(), "text SEROK query id after the names");
+        Checks.equal(2, message.getHops(), "text SEROK hops");
+
+        Checks.equal(3, MessageCodec.encodeSearchOkBinary(out, QUERY_ID, IPV4, 8080, 2, fileNames), "binary SEROK names");
+        message = decode(out);
+        Checks.isTrue(message.isBinary(), "binary SEROK");
+        Checks.equal(fileNames, fileNames(message), "binary SEROK names");
+        Checks.equal(QUERY_ID, message.getQueryId(), "binary SEROK query id");
+        Checks.equal(8080, message.getPort(), "binary SEROK port");
+
+        MessageCodec.encodeSearchOk(out, 0, "192.168.1.10", 8080, 2, fileNames);
+        message = decode(out);
+        Checks.equal(fileNames, fileNames(message), "text SEROK without a query id");
+        Checks.equal(0L, message.getQueryId(), "text SEROK without a query id");
+
+        // Older nodes send unquoted names, a numeric one must not be taken for the query id.
+        message = decode(text("SEROK 2 10.0.0.1 5001 1 Titanic 1997"));
+        Checks.equal(Arrays.asList("Titanic", "1997"), fileNames(message), "unquoted SEROK names ending in a number");
+        Checks.equal(0L, message.getQueryId(), "unquoted SEROK of an older node has no query id");
+        message = decode(text("SEROK 1 10.0.0.1 5001 1 1997 42"));
+        Checks.equal(Arrays.asList("1997"), fileNames(message), "unquoted numeric SEROK name");
+        Checks.equal(42L, message.getQueryId(), "query id after an unquoted numeric name");
+        message = decode(text("SEROK 0 10.0.0.1 5001 1"));
+        Checks.equal(0, message.getItemCount(), "SEROK without names");
+    }
+
+    private static void checkTruncation() {
+        List<String> fileNames = new ArrayList<String>();
+        for (int i = 0; i < 2000; i++) {
+            fileNames.add("Some rather long file name number " + i + (i % 7 == 0 ? " caf\u00e9 \ud83d\ude00" : ""));
+        }
+        for (int capacity : new int[]{Configuration.DATAGRAM_SIZE, 300, 65}) {
+            ByteBuffer out = ByteBuffer.allocate(capacity);
+            int count = MessageCodec.encodeSearchOk(out, QUERY_ID, "192.168.1.10", 8080, 2, fileNames);
+            Message message = decode(out);
+            Checks.isTrue(count < fileNames.size(), "text SEROK truncated in " + capacity + " bytes");
+            Checks.equal(fileNames.subList(0, count), fileNames(message), "text SEROK names in " + capacity + " bytes");
+            Checks.equal(count, message.getValue(), "text SEROK count in " + capacity + " bytes");
+            Checks.equal(QUERY_ID, message.getQueryId(), "text SEROK query id in " + capacity + " bytes");
+
+            count = MessageCodec.encodeSearchOkBinary(out, QUERY_ID, IPV4, 8080, 2, fileNames);
+            message = decode(out);
+            Checks.isTrue(count < fileNames.size(), "binary SEROK truncated in " + capacity + " bytes");
+            Checks.equal(fileNames.subList(0, count), fileNames(message), "binary SEROK names in " + capacity + " bytes");
+        }
+    }
+
+    private static void checkInvalid() {
+        String[] invalid = {"12 JOIN 10.0.0.1 5001", "0030 JOIN 10.0.0.1", "0030 SER 10.0.0.1 5001 \"happy 2",
+                "0030 SEROK 1 10.0.0.1 5001 1 \"Happy", "0030 SER example.org 5001 \"happy\" 2",
+                "0030 JOIN 10.0.0.1 70000", "0030 REGOK 1 localhost 5001", "0030 LEAVE 10.0.0.1 -1"};
+        for (final String datagram : invalid) {
+            Checks.throwsIllegalArgument(new Runnable() {
+                public void run() {
+                    MessageCodec.decode(ByteBuffer.wrap(datagram.getBytes(Message.CHARSET)), new Message());
+                }
+            }, "invalid message \"" + datagram + "\"");
+        }
+        Checks.equal(Message.UNKNOWN, decode(text("HELLO 1")).getOpcode(), "unknown command");
+    }
+
+    // text datagram with its length prefix
+    private static ByteBuffer text(String body) {
+        byte[] bytes = body.getBytes(Message.CHARSET);
+        return ByteBuffer.wrap(String.format("%04d %s", bytes.length + 5, body).getBytes(Message.CHARSET));
+    }
+
+    private static Message decode(ByteBuffer datagram) {
+        Message message = new Message();
+        MessageCodec.decode(datagram, message);
+        return message;
+    }
+
+    private static List<String> fileNames(Message message) {
+        List<String> fileNames = new ArrayList<String>();
+        for (int i = 0; i < message.getItemCount(); i++) {
+            fileNames.add(message.getFileName(i));
+        }
+        return fileNames;
+    }
+}
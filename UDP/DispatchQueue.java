@@ -0,0 +1,196 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Hands received datagrams from the receiving thread to a pool of worker threads which decode and handle them,
+ * so that a slow search or send does not hold up the socket. The queue is bounded. When it is full the datagram
+ * is dropped, as the network would do with a datagram the receiver cannot keep up with.
+ * With no worker threads the datagrams are handled on the receiving thread as they arrive.
+ */
+public class DispatchQueue {
+
+    /**
+     * Handling of a decoded datagram.
+     */
+    public interface Handler {
+        /**
+         * @param message decoded message, only valid until this returns.
+         */
+        void handle(Message message, InetAddress sourceAddress, int sourcePort) throws IOException;
+    }
+
+    private final String name;
+    private final BufferPool bufferPool;
+    private final Handler handler;
+    private final int workerCount;
+    private final BlockingQueue<Datagram> queue;
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private final Message inlineMessage = new Message();
+    private final LongAccumulator maxDepth;
+    private final LongAdder handled;
+    private final LongAdder waitNanos;
+    private final LongAdder rejected;
+
+    /**
+     * @param name        prefix of the worker thread names.
+     * @param bufferPool  pool the datagram buffers are released to once handled.
+     * @param handler     handler of the decoded datagrams.
+     * @param workerCount number of worker threads, 0 to handle datagrams on the receiving thread.
+     * @param capacity    maximum number of datagrams waiting for a worker.
+     * @param metrics     registry the depth, waiting time and drops of the queue are reported in.
+     */
+    public DispatchQueue(String name, BufferPool bufferPool, Handler handler, int workerCount, int capacity,
+                         MetricsRegistry metrics) {
+        this.name = name;
+        this.bufferPool = bufferPool;
+        this.handler = handler;
+        this.workerCount = workerCount;
+        this.queue = new ArrayBlockingQueue<Datagram>(Math.max(1, capacity));
+        this.maxDepth = metrics.maximum("receive.queue.max.depth");
+        this.handled = metrics.counter("receive.queue.handled");
+        this.waitNanos = metrics.counter("receive.queue.wait.nanos");
+        this.rejected = metrics.counter("receive.queue.rejected");
+        metrics.gauge("receive.queue.depth", new LongSupplier() {
+            public long getAsLong() {
+                return queue.size();
+            }
+        });
+        metrics.gauge("receive.queue.wait.micros", new LongSupplier() {
+            public long getAsLong() {
+                return getAverageWaitMicros();
+            }
+        });
+    }
+
+    /**
+     * Starts the worker threads.
+     */
+    public synchronized void start() {
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = new Thread(new Worker(), name + "-worker-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Stops the worker threads. Datagrams still waiting are released without being handled.
+     */
+    public synchronized void stop() {
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        workers.clear();
+        Datagram datagram;
+        while ((datagram = queue.poll()) != null) {
+            bufferPool.release(datagram.buffer);
+        }
+    }
+
+    /**
+     * Queues a received datagram. The queue owns the buffer afterwards and releases it to the pool.
+     *
+     * @param buffer received datagram, ready to be read.
+     * @return false if the queue was full and the datagram was dropped.
+     */
+    public boolean submit(ByteBuffer buffer, InetAddress sourceAddress, int sourcePort) {
+        if (workerCount == 0) {
+            try {
+                handle(inlineMessage, buffer, sourceAddress, sourcePort);
+            } finally {
+                bufferPool.release(buffer);
+            }
+            handled.increment();
+            return true;
+        }
+        if (!queue.offer(new Datagram(buffer, sourceAddress, sourcePort))) {
+            rejected.increment();
+            bufferPool.release(buffer);
+            return false;
+        }
+        maxDepth.accumulate(queue.size());
+        return true;
+    }
+
+    public int getDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return average time in microseconds the handled datagrams waited for a worker.
+     */
+    public long getAverageWaitMicros() {
+        long count = handled.sum();
+        return count == 0 ? 0 : waitNanos.sum() / count / 1000;
+    }
+
+    private void handle(Message message, ByteBuffer buffer, InetAddress sourceAddress, int sourcePort) {
+        try {
+            MessageCodec.decode(buffer, message);
+            handler.handle(message, sourceAddress, sourcePort);
+        } catch (IOException e) {
+            Log.error("Could not handle message from " + sourceAddress.getHostAddress() + ":" + sourcePort, e);
+        } catch (RuntimeException e) {
+            Log.warn("Could not handle message ({}) from {}:{}: {}", message, sourceAddress.getHostAddress(), sourcePort, e);
+        }
+    }
+
+    /**
+     * Worker thread which handles queued datagrams until it is interrupted.
+     */
+    private class Worker implements Runnable {
+
+        private final Message message = new Message();
+
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                Datagram datagram;
+                try {
+                    datagram = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                waitNanos.add(System.nanoTime() - datagram.queuedNanos);
+                try {
+                    handle(message, datagram.buffer, datagram.sourceAddress, datagram.sourcePort);
+                } finally {
+                    bufferPool.release(datagram.buffer);
+                }
+                handled.increment();
+            }
+        }
+    }
+
+    /**
+     * Received datagram waiting for a worker.
+     */
+    private static class Datagram {
+        private final ByteBuffer buffer;
+        private final InetAddress sourceAddress;
+        private final int sourcePort;
+        private final long queuedNanos = System.nanoTime();
+
+        Datagram(ByteBuffer buffer, InetAddress sourceAddress, int sourcePort) {
+            this.buffer = buffer;
+            this.sourceAddress = sourceAddress;
+            this.sourcePort = sourcePort;
+        }
+    }
+}
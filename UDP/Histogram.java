@@ -0,0 +1,201 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative values in a fixed number of log-linear buckets, so that it takes the same memory
+ * however many values are recorded. Values below {@value #SUB_BUCKETS} get a bucket each, larger values share
+ * a bucket with the values within about 3% of them, which is the precision of the reported percentiles.
+ * Values are recorded without locking from any thread, also while the histogram is read or reset.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+    private Snapshot lastInterval = null;
+
+    /**
+     * Records a value, negative values are recorded as 0.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucket(value));
+        long current;
+        while (value < (current = min.get()) && !min.compareAndSet(current, value)) {
+            // retry until the minimum is at most the value
+        }
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry until the maximum is at least the value
+        }
+    }
+
+    /**
+     * @return values recorded since the histogram was created or reset.
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy, min.get(), max.get());
+    }
+
+    /**
+     * @return values recorded since the previous call, or since the histogram was created or reset.
+     */
+    public synchronized Snapshot intervalSnapshot() {
+        Snapshot current = snapshot();
+        Snapshot interval = lastInterval == null ? current : current.minus(lastInterval);
+        lastInterval = current;
+        return interval;
+    }
+
+    /**
+     * Forgets all recorded values. Values recorded while the reset is in progress may or may not be kept.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        min.set(Long.MAX_VALUE);
+        max.set(Long.MIN_VALUE);
+        lastInterval = null;
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    // smallest value of the bucket
+    private static long lowestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+
+    // largest value of the bucket
+    private static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        return lowestValue(bucket) + (1L << (bucket / SUB_BUCKETS - 1)) - 1;
+    }
+
+    /**
+     * Values of a histogram at one point in time.
+     */
+    public static class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long min;
+        private final long max;
+        private final double mean;
+
+        Snapshot(long[] counts, long min, long max) {
+            this.counts = counts;
+            long total = 0;
+            double sum = 0;
+            int lowest = -1;
+            int highest = -1;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0) {
+                    total += counts[i];
+                    // The middle of the bucket stands in for its values.
+                    sum += counts[i] * (lowestValue(i) / 2.0 + highestValue(i) / 2.0);
+                    if (lowest < 0) {
+                        lowest = i;
+                    }
+                    highest = i;
+                }
+            }
+            if (total != 0 && min > max) {
+                // A value being recorded was counted before the extremes were updated.
+                min = lowestValue(lowest);
+                max = highestValue(highest);
+            }
+            this.count = total;
+            this.min = total == 0 ? 0 : min;
+            this.max = total == 0 ? 0 : max;
+            this.mean = total == 0 ? 0 : sum / total;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMin() {
+            return min;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @return mean of the values, within the precision of the buckets.
+         */
+        public double getMean() {
+            return mean;
+        }
+
+        /**
+         * @param percentile percentile between 0 and 100.
+         * @return largest value of the bucket holding the percentile, 0 if nothing was recorded.
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, percentile) / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.max(min, Math.min(max, highestValue(i)));
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "COUNT = " + count + " | MIN = " + min + " | MAX = " + max + " | AVG = " + String.format("%.1f", mean)
+                    + " | P50 = " + getPercentile(50) + " | P90 = " + getPercentile(90) + " | P99 = " + getPercentile(99)
+                    + " | P99.9 = " + getPercentile(99.9);
+        }
+
+        // values recorded since the earlier snapshot, the extremes are bounded by the buckets
+        Snapshot minus(Snapshot earlier) {
+            long[] difference = new long[counts.length];
+            int lowest = -1;
+            int highest = -1;
+            for (int i = 0; i < counts.length; i++) {
+                difference[i] = Math.max(0, counts[i] - earlier.counts[i]);
+                if (difference[i] != 0) {
+                    if (lowest < 0) {
+                        lowest = i;
+                    }
+                    highest = i;
+                }
+            }
+            if (lowest < 0) {
+                return new Snapshot(difference, 0, 0);
+            }
+            return new Snapshot(difference, Math.max(min, lowestValue(lowest)), Math.min(max, highestValue(highest)));
+        }
+    }
+}
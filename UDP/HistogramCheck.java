@@ -0,0 +1,126 @@
+/**
+ * Self-check of the histogram: exact small values, the precision of the buckets across the whole range of longs,
+ * percentiles, interval snapshots, resets and recording from several threads.
+ * Run with {@code java HistogramCheck} from the compiled folder.
+ */
+public class HistogramCheck {
+
+    // Values share a bucket with values within 1/32 of them.
+    private static final double PRECISION = 1.0 / 32;
+
+    public static void main(String[] args) throws InterruptedException {
+        checkEmpty();
+        checkSmallValues();
+        checkPrecision();
+        checkPercentiles();
+        checkIntervals();
+        checkConcurrentRecording();
+        Checks.report("HistogramCheck");
+    }
+
+    private static void checkEmpty() {
+        Histogram.Snapshot snapshot = new Histogram().snapshot();
+        Checks.equal(0L, snapshot.getCount(), "empty count");
+        Checks.equal(0L, snapshot.getMin(), "empty minimum");
+        Checks.equal(0L, snapshot.getMax(), "empty maximum");
+        Checks.equal(0L, snapshot.getPercentile(50), "empty percentile");
+    }
+
+    private static void checkSmallValues() {
+        Histogram histogram = new Histogram();
+        for (int value = 0; value < 32; value++) {
+            histogram.record(value);
+        }
+        histogram.record(-5);
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        Checks.equal(33L, snapshot.getCount(), "small value count");
+        Checks.equal(0L, snapshot.getMin(), "negative values are recorded as 0");
+        Checks.equal(31L, snapshot.getMax(), "small value maximum");
+        Checks.equal(15L, snapshot.getPercentile(50), "small values are exact");
+        Checks.equal(0L, snapshot.getPercentile(0), "0th percentile");
+        Checks.equal(31L, snapshot.getPercentile(100), "100th percentile");
+        Checks.equal(496.0 / 33, snapshot.getMean(), "small value mean");
+    }
+
+    // The median of a value and a larger one is the top of the value's bucket, which must be close above it.
+    private static void checkPrecision() {
+        long[] values = {31, 32, 33, 63, 64, 65, 1000, 1023, 1024, 1025, 123456789, (1L << 40) - 1, 1L << 40,
+                (1L << 40) + 1, Long.MAX_VALUE / 3, (Long.MAX_VALUE >> 1) + 1};
+        for (long value : values) {
+            Histogram histogram = new Histogram();
+            histogram.record(value);
+            histogram.record(Long.MAX_VALUE);
+            long top = histogram.snapshot().getPercentile(50);
+            Checks.isTrue(top >= value && top - value <= value * PRECISION,
+                    "bucket of " + value + " ends at " + top);
+        }
+        Histogram histogram = new Histogram();
+        histogram.record(Long.MAX_VALUE);
+        Checks.equal(Long.MAX_VALUE, histogram.snapshot().getPercentile(99), "largest value");
+    }
+
+    private static void checkPercentiles() {
+        Histogram histogram = new Histogram();
+        for (int value = 1; value <= 10000; value++) {
+            histogram.record(value);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        Checks.equal(10000L, snapshot.getCount(), "count");
+        Checks.equal(1L, snapshot.getMin(), "minimum");
+        Checks.equal(10000L, snapshot.getMax(), "maximum");
+        Checks.isTrue(Math.abs(snapshot.getMean() - 5000.5) <= 5000.5 * PRECISION, "mean " + snapshot.getMean());
+        double[] percentiles = {50, 90, 99, 99.9};
+        for (double percentile : percentiles) {
+            long exact = (long) Math.ceil(percentile * 100);
+            long reported = snapshot.getPercentile(percentile);
+            Checks.isTrue(reported >= exact && reported - exact <= exact * PRECISION,
+                    "P" + percentile + " of 1 to 10000 is " + reported);
+        }
+        Checks.equal(10000L, snapshot.getPercentile(100), "P100 is the maximum");
+    }
+
+    private static void checkIntervals() {
+        Histogram histogram = new Histogram();
+        for (int value = 0; value < 10; value++) {
+            histogram.record(1000);
+        }
+        Checks.equal(10L, histogram.intervalSnapshot().getCount(), "first interval");
+        for (int value = 0; value < 5; value++) {
+            histogram.record(10);
+        }
+        Histogram.Snapshot interval = histogram.intervalSnapshot();
+        Checks.equal(5L, interval.getCount(), "second interval");
+        Checks.equal(10L, interval.getMax(), "second interval maximum");
+        Checks.equal(0L, histogram.intervalSnapshot().getCount(), "empty interval");
+        Checks.equal(15L, histogram.snapshot().getCount(), "snapshot spans the intervals");
+
+        histogram.reset();
+        Checks.equal(0L, histogram.snapshot().getCount(), "reset");
+        histogram.record(7);
+        Checks.equal(1L, histogram.intervalSnapshot().getCount(), "interval after a reset");
+        Checks.equal(7L, histogram.snapshot().getMin(), "minimum after a reset");
+    }
+
+    private static void checkConcurrentRecording() throws InterruptedException {
+        final Histogram histogram = new Histogram();
+        final Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int offset = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    for (int value = 0; value < 100000; value++) {
+                        histogram.record(value * threads.length + offset);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        Checks.equal(400000L, snapshot.getCount(), "values recorded from several threads");
+        Checks.equal(0L, snapshot.getMin(), "minimum recorded from several threads");
+        Checks.equal(399999L, snapshot.getMax(), "maximum recorded from several threads");
+    }
+}
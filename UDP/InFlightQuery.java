@@ -0,0 +1,220 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Consumer;
+
+/**
+ * A search started by this node that is still waiting for results.
+ * Times are measured with {@link System#nanoTime()} from the moment the query was sent.
+ * The query completes with the results received so far once it has enough results or its deadline has passed.
+ * A query may be sent several times with growing hop counts, each time with its own id since the nodes drop
+ * ids they have already seen. The sends are numbered as rings starting from 1. Each send remembers the
+ * neighbours it went to, so that a result can be credited to the first hop of its id.
+ */
+public class InFlightQuery {
+
+    private final long queryId;
+    private final String query;
+    private final long startNanos;
+    private final long deadlineNanos;
+    private final int maxResults;
+    private final Consumer<SearchResult> resultListener;
+    private final List<SearchResult> results = new ArrayList<SearchResult>();
+    private final CompletableFuture<List<SearchResult>> completion = new CompletableFuture<List<SearchResult>>();
+    private long firstHitNanos = -1;
+    private long lastHitNanos = -1;
+    private ScheduledFuture<?> timeoutTask = null;
+    private boolean satisfied = false;
+    // Sends of each id, in the order of the rings.
+    private final LinkedHashMap<Long, Send> sends = new LinkedHashMap<Long, Send>();
+
+    /**
+     * @param queryId        unique id of the query.
+     * @param query          canonical query sent to the neighbours.
+     * @param timeout        time in milliseconds results are accepted for.
+     * @param maxResults     number of results after which the query completes early.
+     * @param resultListener called with every accepted result, may be null.
+     */
+    public InFlightQuery(long queryId, String query, long timeout, int maxResults, Consumer<SearchResult> resultListener) {
+        this.queryId = queryId;
+        this.query = query;
+        this.startNanos = System.nanoTime();
+        this.deadlineNanos = startNanos + timeout * 1000000L;
+        this.maxResults = maxResults;
+        this.resultListener = resultListener;
+    }
+
+    /**
+     * Records a result of the query.
+     *
+     * @return time from sending the query to receiving this result in nanoseconds, -1 if the query has
+     * already completed.
+     */
+    public long addResult(SearchResult result) {
+        long elapsed;
+        synchronized (this) {
+            if (completion.isDone()) {
+                return -1;
+            }
+            elapsed = System.nanoTime() - startNanos;
+            results.add(result);
+            if (firstHitNanos < 0) {
+                firstHitNanos = elapsed;
+            }
+            lastHitNanos = elapsed;
+        }
+        if (resultListener != null) {
+            try {
+                resultListener.accept(result);
+            } catch (RuntimeException e) {
+                Log.error("Result listener failed", e);
+            }
+        }
+        return elapsed;
+    }
+
+    /**
+     * Completes the query with the results received so far. Does nothing if it has already completed.
+     */
+    public void complete() {
+        List<SearchResult> finalResults;
+        synchronized (this) {
+            if (timeoutTask != null) {
+                timeoutTask.cancel(false);
+            }
+            finalResults = new ArrayList<SearchResult>(results);
+        }
+        completion.complete(finalResults);
+    }
+
+    /**
+     * Records a send of the query as its next ring.
+     *
+     * @param queryId    id the query was sent with.
+     * @param hops       hops the query was sent with.
+     * @param neighbours neighbours the query was sent to with this id.
+     */
+    synchronized void addSend(long queryId, int hops, List<NodeData> neighbours) {
+        sends.put(queryId, new Send(hops, neighbours));
+    }
+
+    /**
+     * @return ids the query was sent with.
+     */
+    public synchronized List<Long> getQueryIds() {
+        return new ArrayList<Long>(sends.keySet());
+    }
+
+    /**
+     * @return hops the query was sent with under the given id, -1 if the id is not one of the query.
+     */
+    public synchronized int getHops(long queryId) {
+        Send send = sends.get(queryId);
+        return send == null ? -1 : send.hops;
+    }
+
+    /**
+     * @return neighbours the query was sent to under the given id, empty if the id is not one of the query.
+     */
+    public synchronized List<NodeData> getNeighbours(long queryId) {
+        Send send = sends.get(queryId);
+        return send == null ? Collections.<NodeData>emptyList() : send.neighbours;
+    }
+
+    /**
+     * @return ring the given id was sent in, starting from 1, -1 if the id is not one of the query.
+     */
+    public synchronized int getRing(long queryId) {
+        int ring = 1;
+        for (Long sentId : sends.keySet()) {
+            if (sentId == queryId) {
+                return ring;
+            }
+            ring++;
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the result is the first one accepted.
+     */
+    public synchronized boolean isFirstResult(SearchResult result) {
+        return !results.isEmpty() && results.get(0) == result;
+    }
+
+    /**
+     * Marks the query as satisfied once it has received the given number of results.
+     *
+     * @return true only for the call which marks it, false if it has fewer results or was marked before.
+     */
+    public synchronized boolean markSatisfied(int resultCount) {
+        if (satisfied || results.size() < resultCount) {
+            return false;
+        }
+        satisfied = true;
+        return true;
+    }
+
+    synchronized void setTimeoutTask(ScheduledFuture<?> timeoutTask) {
+        this.timeoutTask = timeoutTask;
+    }
+
+    public long getQueryId() {
+        return queryId;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public int getMaxResults() {
+        return maxResults;
+    }
+
+    public boolean isExpired(long nowNanos) {
+        return nowNanos - deadlineNanos >= 0;
+    }
+
+    /**
+     * @return future completed with all accepted results when the query completes.
+     */
+    public CompletableFuture<List<SearchResult>> getCompletion() {
+        return completion;
+    }
+
+    public synchronized List<SearchResult> getResults() {
+        return new ArrayList<SearchResult>(results);
+    }
+
+    public synchronized int getResultCount() {
+        return results.size();
+    }
+
+    /**
+     * @return time to the first result in nanoseconds, -1 if there is none yet.
+     */
+    public synchronized long getFirstHitNanos() {
+        return firstHitNanos;
+    }
+
+    /**
+     * @return time to the latest result in nanoseconds, -1 if there is none yet.
+     */
+    public synchronized long getLastHitNanos() {
+        return lastHitNanos;
+    }
+
+    private static class Send {
+
+        private final int hops;
+        private final List<NodeData> neighbours;
+
+        Send(int hops, List<NodeData> neighbours) {
+            this.hops = hops;
+            this.neighbours = neighbours;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Decoded view of a protocol message.
+ * Fields are kept as offsets in to the received datagram and strings are only created when they are asked for,
+ * so a message must not be used after its datagram buffer has been released. A single instance is meant to be
+ * reused for every datagram a thread receives.
+ */
+public class Message {
+
+    public static final byte UNKNOWN = 0;
+    public static final byte REG = 1;
+    public static final byte REGOK = 2;
+    public static final byte UNREG = 3;
+    public static final byte UNROK = 4;
+    public static final byte JOIN = 5;
+    public static final byte JOINOK = 6;
+    public static final byte LEAVE = 7;
+    public static final byte LEAVEOK = 8;
+    public static final byte SER = 9;
+    public static final byte SEROK = 10;
+    public static final byte ERROR = 11;
+    public static final byte CATALOG = 12;
+    public static final byte CANCEL = 13;
+    // Number of opcodes, including UNKNOWN.
+    static final int OPCODE_COUNT = 14;
+
+    static final Charset CHARSET = Charset.forName("UTF-8");
+
+    final MessageCodec.Scanner scanner = new MessageCodec.Scanner();
+    ByteBuffer data;
+    byte opcode;
+    boolean binary;
+    boolean binaryCapable;
+    boolean originBinary;
+    boolean walk;
+    long queryId;
+    long ipv4;
+    int ipOffset;
+    int ipLength;
+    int port;
+    int value;
+    int hops;
+    int queryOffset;
+    int queryLength;
+    int itemCount;
+    int[] itemOffsets = new int[8];
+    int[] itemLengths = new int[8];
+    int[] itemPorts = new int[8];
+
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    /**
+     * @return size of the datagram in bytes.
+     */
+    public int getLength() {
+        return data == null ? 0 : data.limit();
+    }
+
+    /**
+     * @return true if the message is a response to a request sent in client mode.
+     */
+    public boolean isReply() {
+        return opcode == REGOK || opcode == UNROK || opcode == JOINOK || opcode == LEAVEOK;
+    }
+
+    /**
+     * @return true if the message was received in the binary format.
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * @return true if the sender of a JOIN or JOINOK offered the binary format.
+     */
+    public boolean isBinaryCapable() {
+        return binaryCapable;
+    }
+
+    /**
+     * @return true if the node that started a SER accepts a binary SEROK.
+     */
+    public boolean isOriginBinary() {
+        return originBinary;
+    }
+
+    /**
+     * @return true if the SER is a random walker, which each node forwards to a single neighbour.
+     */
+    public boolean isWalk() {
+        return walk;
+    }
+
+    /**
+     * @return query id of a SER, CANCEL or binary SEROK, 0 if the message carries none.
+     */
+    public long getQueryId() {
+        return queryId;
+    }
+
+    /**
+     * @return IP address of a REG, UNREG, JOIN, LEAVE, SER, CATALOG or CANCEL sender or of a SEROK owner.
+     */
+    public String getIP() {
+        if (binary) {
+            return ((ipv4 >>> 24) & 0xFF) + "." + ((ipv4 >>> 16) & 0xFF) + "." + ((ipv4 >>> 8) & 0xFF) + "." + (ipv4 & 0xFF);
+        }
+        return string(ipOffset, ipLength);
+    }
+
+    /**
+     * @return IPv4 address packed in to the lower 32 bits, -1 if the address is not an IPv4 literal.
+     */
+    public long getIPv4() {
+        return ipv4;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return status value of a JOINOK, LEAVEOK or UNROK, node count of a REGOK, file count of a SEROK or
+     * number of hashes of a CATALOG.
+     */
+    public int getValue() {
+        return value;
+    }
+
+    public int getHops() {
+        return hops;
+    }
+
+    /**
+     * @return query of a SER message, or the username of a REG or UNREG message.
+     */
+    public String getQuery() {
+        return string(queryOffset, queryLength);
+    }
+
+    /**
+     * @return catalog summary of the sender of a CATALOG message.
+     * @throws IllegalArgumentException if the filter is malformed.
+     */
+    public BloomFilter getCatalog() {
+        return BloomFilter.fromHex(string(queryOffset, queryLength), value);
+    }
+
+    /**
+     * @return number of file names in a SEROK or number of nodes in a REGOK.
+     */
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    public String getFileName(int index) {
+        return string(itemOffsets[index], itemLengths[index]);
+    }
+
+    public String getNodeIP(int index) {
+        return string(itemOffsets[index], itemLengths[index]);
+    }
+
+    public int getNodePort(int index) {
+        return itemPorts[index];
+    }
+
+    /**
+     * Creates a copy of the message which owns its data and can outlive the received datagram.
+     *
+     * @return detached copy of the message.
+     */
+    public Message copy() {
+        ByteBuffer source = data.duplicate();
+        source.position(0);
+        ByteBuffer copyData = ByteBuffer.allocate(source.limit());
+        copyData.put(source);
+        copyData.flip();
+
+        Message copy = new Message();
+        copy.data = copyData;
+        copy.opcode = opcode;
+        copy.binary = binary;
+        copy.binaryCapable = binaryCapable;
+        copy.originBinary = originBinary;
+        copy.walk = walk;
+        copy.queryId = queryId;
+        copy.ipv4 = ipv4;
+        copy.ipOffset = ipOffset;
+        copy.ipLength = ipLength;
+        copy.port = port;
+        copy.value = value;
+        copy.hops = hops;
+        copy.queryOffset = queryOffset;
+        copy.queryLength = queryLength;
+        copy.itemCount = itemCount;
+        copy.itemOffsets = itemOffsets.clone();
+        copy.itemLengths = itemLengths.clone();
+        copy.itemPorts = itemPorts.clone();
+        return copy;
+    }
+
+    void addItem(int offset, int length, int itemPort) {
+        if (itemCount == itemOffsets.length) {
+            itemOffsets = Arrays.copyOf(itemOffsets, itemCount * 2);
+            itemLengths = Arrays.copyOf(itemLengths, itemCount * 2);
+            itemPorts = Arrays.copyOf(itemPorts, itemCount * 2);
+        }
+        itemOffsets[itemCount] = offset;
+        itemLengths[itemCount] = length;
+        itemPorts[itemCount] = itemPort;
+        itemCount++;
+    }
+
+    void reset(ByteBuffer data) {
+        this.data = data;
+        opcode = UNKNOWN;
+        binary = binaryCapable = originBinary = walk = false;
+        queryId = 0;
+        ipv4 = -1;
+        ipOffset = ipLength = port = value = hops = queryOffset = queryLength = itemCount = 0;
+    }
+
+    private String string(int offset, int length) {
+        if (data.hasArray()) {
+            return new String(data.array(), data.arrayOffset() + offset, length, CHARSET);
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = data.get(offset + i);
+        }
+        return new String(bytes, CHARSET);
+    }
+
+    @Override
+    public String toString() {
+        if (binary) {
+            StringBuilder builder = new StringBuilder("BINARY ").append(MessageCodec.command(opcode)).append(' ').append(getIP())
+                    .append(' ').append(port).append(' ').append(hops).append(" #").append(queryId);
+            if (walk) {
+                builder.append(" WALK");
+            }
+            if (opcode == SER) {
+                builder.append(" \"").append(getQuery()).append('"');
+            }
+            for (int i = 0; i < itemCount; i++) {
+                builder.append(" \"").append(getFileName(i)).append('"');
+            }
+            return builder.toString();
+        }
+        return data == null ? "" : string(0, data.limit());
+    }
+}
@@ -0,0 +1,862 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Encoder and decoder of the text protocol and of the compact binary format used between capable nodes.
+ * Messages are written straight in to a {@link ByteBuffer} and the 4 digit length prefix is filled in once the
+ * message is complete. Received datagrams are decoded by scanning the bytes in place in to a reusable {@link Message}.
+ * All encode methods leave the buffer flipped and ready to be sent.
+ * <p>
+ * Nodes offer the binary format by appending {@code BIN1} to JOIN and JOINOK, which older nodes ignore. Binary
+ * frames start with a version byte that has the high bit set, so they can never be mistaken for the length prefix
+ * of a text message. They are only used for SER and SEROK:
+ * <pre>
+ *     SER   : version opcode queryId(varint) flags ipv4(4) port(2) hops(varint) queryLength(varint) query
+ *     SEROK : version opcode queryId(varint) ipv4(4) port(2) hops(varint) count(varint) (length(varint) name)*
+ * </pre>
+ * Bit 0 of the SER flags tells whether the searching node accepts a binary SEROK, bit 1 marks a random walker.
+ * Text SER messages carry the query id as an optional field after the hop count, followed by {@code WALK} for
+ * a random walker.
+ * <p>
+ * Nodes publish a summary of their file names to their neighbours with {@code CATALOG ip port hashes bits},
+ * where the bits of the {@link BloomFilter} are a single hexadecimal token.
+ * <p>
+ * A node which has enough results for a query sends {@code CANCEL ip port queryId} to the neighbours it sent
+ * the query to, and every node passes it on to the neighbours it forwarded the query to. Like SER it carries
+ * the address of the searching node.
+ */
+public final class MessageCodec {
+
+    // Indexed by opcode.
+    private static final byte[][] COMMANDS = {
+            null,
+            bytes("REG"), bytes("REGOK"), bytes("UNREG"), bytes("UNROK"), bytes("JOIN"), bytes("JOINOK"),
+            bytes("LEAVE"), bytes("LEAVEOK"), bytes("SER"), bytes("SEROK"), bytes("ERROR"), bytes("CATALOG"),
+            bytes("CANCEL")
+    };
+    private static final int MAX_LENGTH = 9999;
+    // Room left for the query id after the file names of a SEROK.
+    private static final int QUERY_ID_LENGTH = 20;
+    private static final byte BINARY_VERSION = (byte) 0x81;
+    private static final byte[] BINARY_CAPABILITY = bytes("BIN1");
+    private static final byte[] WALK = bytes("WALK");
+    private static final int FLAG_ORIGIN_BINARY = 1;
+    private static final int FLAG_WALK = 2;
+
+    private MessageCodec() {
+    }
+
+    /**
+     * Decodes a datagram in to the given message.
+     *
+     * @param datagram received datagram, from position 0 to the limit.
+     * @param message  message to fill, its previous content is discarded.
+     * @throws IllegalArgumentException if the datagram is not a valid message.
+     */
+    public static void decode(ByteBuffer datagram, Message message) {
+        message.reset(datagram);
+        if (datagram.limit() > 0 && (datagram.get(0) & 0x80) != 0) {
+            decodeBinary(datagram, message);
+            return;
+        }
+        Scanner scanner = message.scanner;
+        scanner.reset(datagram);
+
+        if (scanner.tokenEnd() != 4) {
+            throw new IllegalArgumentException("Invalid length prefix");
+        }
+        scanner.readInt();
+
+        int commandStart = scanner.skipSpaces();
+        int commandEnd = scanner.tokenEnd();
+        message.opcode = opcode(datagram, commandStart, commandEnd);
+        scanner.position = commandEnd;
+
+        switch (message.opcode) {
+            case Message.REG:
+            case Message.UNREG:
+                readAddress(scanner, message);
+                message.queryOffset = scanner.skipSpaces();
+                message.queryLength = scanner.tokenEnd() - message.queryOffset;
+                break;
+            case Message.REGOK:
+                message.value = scanner.readInt();
+                // Node counts of 9996 and above are error codes.
+                for (int i = 0; message.value < 9996 && i < message.value; i++) {
+                    int ipOffset = scanner.skipSpaces();
+                    int ipEnd = scanner.tokenEnd();
+                    checkAddress(NodeData.parseIPv4(scanner, ipOffset, ipEnd), ipOffset);
+                    scanner.position = ipEnd;
+                    message.addItem(ipOffset, ipEnd - ipOffset, checkPort(scanner.readInt()));
+                }
+                break;
+            case Message.JOINOK:
+                message.value = scanner.readInt();
+                message.binaryCapable = scanner.nextTokenEquals(BINARY_CAPABILITY);
+                break;
+            case Message.UNROK:
+            case Message.LEAVEOK:
+                message.value = scanner.readInt();
+                break;
+            case Message.JOIN:
+                readAddress(scanner, message);
+                message.binaryCapable = scanner.nextTokenEquals(BINARY_CAPABILITY);
+                break;
+            case Message.LEAVE:
+                readAddress(scanner, message);
+                break;
+            case Message.CATALOG:
+                readAddress(scanner, message);
+                message.value = scanner.readInt();
+                message.queryOffset = scanner.skipSpaces();
+                message.queryLength = scanner.tokenEnd() - message.queryOffset;
+                break;
+            case Message.CANCEL:
+                readAddress(scanner, message);
+                message.queryId = scanner.readLong();
+                break;
+            case Message.SER:
+                readAddress(scanner, message);
+                int queryStart = scanner.skipSpaces();
+                if (queryStart < scanner.limit && datagram.get(queryStart) == '"') {
+                    // The hop count and the fields after it never contain quotes.
+                    int queryEnd = scanner.lastIndexOf('"');
+                    if (queryEnd <= queryStart) {
+                        throw new IllegalArgumentException("Unterminated query");
+                    }
+                    message.queryOffset = queryStart + 1;
+                    message.queryLength = queryEnd - queryStart - 1;
+                    scanner.position = queryEnd + 1;
+                } else {
+                    // Unquoted query, everything up to the hop count.
+                    int queryEnd = scanner.lastIndexOf(' ');
+                    message.queryOffset = queryStart;
+                    message.queryLength = Math.max(0, queryEnd - queryStart);
+                    scanner.position = Math.max(queryStart, queryEnd);
+                }
+                message.hops = scanner.readInt();
+                // Query id and walker mark, which older nodes neither send nor read.
+                if (scanner.skipSpaces() < scanner.limit) {
+                    message.queryId = scanner.readLong();
+                    message.walk = scanner.nextTokenEquals(WALK);
+                }
+                break;
+            case Message.SEROK:
+                message.value = scanner.readInt();
+                readAddress(scanner, message);
+                message.hops = scanner.readInt();
+                while (scanner.skipSpaces() < scanner.limit) {
+                    if (message.getItemCount() >= message.value && scanner.tokenEnd() == scanner.limit
+                            && scanner.isNumber(scanner.position, scanner.limit)) {
+                        // Query id after the announced file names, which older nodes neither send nor read.
+                        message.queryId = scanner.readLong();
+                        break;
+                    }
+                    int nameStart = scanner.position;
+                    int nameEnd;
+                    if (datagram.get(nameStart) == '"') {
+                        nameStart++;
+                        nameEnd = scanner.closingQuote(nameStart);
+                        scanner.position = nameEnd + 1;
+                    } else {
+                        nameEnd = scanner.tokenEnd();
+                        scanner.position = nameEnd;
+                    }
+                    message.addItem(nameStart, nameEnd - nameStart, 0);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    public static void encodeRegister(ByteBuffer out, String ip, int port, String username) {
+        encodeBootstrapRequest(out, Message.REG, ip, port, username);
+    }
+
+    public static void encodeUnregister(ByteBuffer out, String ip, int port, String username) {
+        encodeBootstrapRequest(out, Message.UNREG, ip, port, username);
+    }
+
+    /**
+     * Encodes the REGOK response of a successful registration.
+     *
+     * @param nodes registered nodes given to the new node as its neighbours.
+     */
+    public static void encodeRegisterOk(ByteBuffer out, List<NodeData> nodes) {
+        begin(out, Message.REGOK);
+        putInt(out, nodes.size());
+        for (NodeData node : nodes) {
+            out.put((byte) ' ');
+            putAscii(out, node.getIP());
+            out.put((byte) ' ');
+            putInt(out, node.getPort());
+        }
+        end(out);
+    }
+
+    /**
+     * Encodes the REGOK response of a failed registration.
+     *
+     * @param errorCode 9999 for a malformed request, 9998 if the node is already registered, 9997 if its address
+     *                  is registered to another user and 9996 if the server is full.
+     */
+    public static void encodeRegisterFailed(ByteBuffer out, int errorCode) {
+        encodeStatus(out, Message.REGOK, errorCode);
+    }
+
+    /**
+     * @param value 0 if the node was unregistered, 9999 otherwise.
+     */
+    public static void encodeUnregisterOk(ByteBuffer out, int value) {
+        encodeStatus(out, Message.UNROK, value);
+    }
+
+    /**
+     * @param offerBinary true to tell the neighbour that this node accepts the binary format.
+     */
+    public static void encodeJoin(ByteBuffer out, String ip, int port, boolean offerBinary) {
+        begin(out, Message.JOIN);
+        putAscii(out, ip);
+        out.put((byte) ' ');
+        putInt(out, port);
+        if (offerBinary) {
+            out.put((byte) ' ').put(BINARY_CAPABILITY);
+        }
+        end(out);
+    }
+
+    public static void encodeLeave(ByteBuffer out, String ip, int port) {
+        encodeAddress(out, Message.LEAVE, ip, port);
+    }
+
+    /**
+     * @param offerBinary true to accept the binary format offered by the joining node.
+     */
+    public static void encodeJoinOk(ByteBuffer out, int value, boolean offerBinary) {
+        begin(out, Message.JOINOK);
+        putInt(out, value);
+        if (offerBinary) {
+            out.put((byte) ' ').put(BINARY_CAPABILITY);
+        }
+        end(out);
+    }
+
+    public static void encodeLeaveOk(ByteBuffer out, int value) {
+        encodeStatus(out, Message.LEAVEOK, value);
+    }
+
+    /**
+     * Encodes the catalog summary a node publishes to its neighbours.
+     *
+     * @param catalog Bloom filter of the terms in the file names of the node.
+     */
+    public static void encodeCatalog(ByteBuffer out, String ip, int port, BloomFilter catalog) {
+        begin(out, Message.CATALOG);
+        putAscii(out, ip);
+        out.put((byte) ' ');
+        putInt(out, port);
+        out.put((byte) ' ');
+        putInt(out, catalog.getHashes());
+        out.put((byte) ' ');
+        putAscii(out, catalog.toHex());
+        end(out);
+    }
+
+    /**
+     * Encodes a cancel of a query.
+     *
+     * @param ip   IP address of the searching node.
+     * @param port port of the searching node.
+     */
+    public static void encodeCancel(ByteBuffer out, String ip, int port, long queryId) {
+        begin(out, Message.CANCEL);
+        putAscii(out, ip);
+        out.put((byte) ' ');
+        putInt(out, port);
+        out.put((byte) ' ');
+        putLong(out, queryId);
+        end(out);
+    }
+
+    public static void encodeError(ByteBuffer out) {
+        begin(out, Message.ERROR);
+        end(out);
+    }
+
+    /**
+     * Encodes a text SER message. The query id is appended after the hop count, where older nodes ignore it.
+     *
+     * @param queryId query id, 0 to leave it out.
+     * @param walk    true for a random walker, which needs a query id.
+     */
+    public static void encodeSearch(ByteBuffer out, long queryId, String ip, int port, String query, int hops, boolean walk) {
+        begin(out, Message.SER);
+        putAscii(out, ip);
+        out.put((byte) ' ');
+        putInt(out, port);
+        out.put((byte) ' ').put((byte) '"');
+        putAscii(out, query);
+        out.put((byte) '"').put((byte) ' ');
+        putInt(out, hops);
+        putQueryId(out, queryId);
+        putWalk(out, queryId != 0 && walk);
+        end(out);
+    }
+
+    /**
+     * Encodes a binary SER message.
+     *
+     * @param originBinary true if the searching node accepts a binary SEROK.
+     * @param ipv4         packed IPv4 address of the searching node, see {@link NodeData#parseIPv4(String)}.
+     * @param walk         true for a random walker.
+     */
+    public static void encodeSearchBinary(ByteBuffer out, long queryId, boolean originBinary, long ipv4, int port,
+                                          String query, int hops, boolean walk) {
+        out.clear();
+        out.put(BINARY_VERSION).put(Message.SER);
+        putVarint(out, queryId);
+        out.put(searchFlags(originBinary, walk));
+        out.putInt((int) ipv4).putShort((short) port);
+        putVarint(out, hops);
+        byte[] queryBytes = query.getBytes(Message.CHARSET);
+        putVarint(out, queryBytes.length);
+        out.put(queryBytes);
+        out.flip();
+    }
+
+    /**
+     * Encodes a received SER message with a new hop count, copying the query bytes without decoding them.
+     * The received message may be in either format.
+     *
+     * @param binary       true to encode in the binary format, which needs an IPv4 address in the message.
+     * @param originBinary true if the searching node accepts a binary SEROK.
+     */
+    public static void encodeSearchForward(ByteBuffer out, Message search, int hops, boolean binary, boolean originBinary) {
+        if (binary) {
+            out.clear();
+            out.put(BINARY_VERSION).put(Message.SER);
+            putVarint(out, search.queryId);
+            out.put(searchFlags(originBinary, search.walk));
+            out.putInt((int) search.ipv4).putShort((short) search.port);
+            putVarint(out, hops);
+            putVarint(out, search.queryLength);
+            copy(out, search.data, search.queryOffset, search.queryLength);
+            out.flip();
+            return;
+        }
+        begin(out, Message.SER);
+        putIP(out, search);
+        out.put((byte) ' ');
+        putInt(out, search.port);
+        out.put((byte) ' ').put((byte) '"');
+        copy(out, search.data, search.queryOffset, search.queryLength);
+        out.put((byte) '"').put((byte) ' ');
+        putInt(out, hops);
+        putQueryId(out, search.queryId);
+        putWalk(out, search.queryId != 0 && search.walk);
+        end(out);
+    }
+
+    /**
+     * Encodes a binary SEROK message with as many of the file names as fit in the buffer.
+     *
+     * @param ipv4 packed IPv4 address of the owner node, see {@link NodeData#parseIPv4(String)}.
+     * @return number of file names encoded, fewer than given if the others would not fit.
+     */
+    public static int encodeSearchOkBinary(ByteBuffer out, long queryId, long ipv4, int port, int hops, List<String> fileNames) {
+        int count = fileNames.size();
+        int limit = out.capacity();
+        int length = 0;
+        for (int attempt = 0; attempt < 2; attempt++) {
+            out.clear();
+            out.put(BINARY_VERSION).put(Message.SEROK);
+            putVarint(out, queryId);
+            out.putInt((int) ipv4).putShort((short) port);
+            putVarint(out, hops);
+            putVarint(out, count);
+            if (attempt == 0) {
+                // The count takes no more bytes once it is lowered, so the names which fit now still fit.
+                length = out.position();
+                count = 0;
+                for (String fileName : fileNames) {
+                    int nameLength = utf8Length(fileName);
+                    length += varintLength(nameLength) + nameLength;
+                    if (length > limit) {
+                        break;
+                    }
+                    count++;
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            byte[] nameBytes = fileNames.get(i).getBytes(Message.CHARSET);
+            putVarint(out, nameBytes.length);
+            out.put(nameBytes);
+        }
+        out.flip();
+        return count;
+    }
+
+    /**
+     * Encodes a text SEROK message with as many of the file names as fit in a message. The query id is appended
+     * after the file names, where older nodes ignore it.
+     *
+     * @param queryId id of the answered query, 0 to leave it out.
+     * @return number of file names encoded, fewer than given if the others would not fit.
+     */
+    public static int encodeSearchOk(ByteBuffer out, long queryId, String ip, int port, int hops, List<String> fileNames) {
+        int count = fileNames.size();
+        int limit = Math.min(out.capacity(), MAX_LENGTH) - QUERY_ID_LENGTH;
+        int length = 0;
+        for (int attempt = 0; attempt < 2; attempt++) {
+            begin(out, Message.SEROK);
+            putInt(out, count);
+            out.put((byte) ' ');
+            putAscii(out, ip);
+            out.put((byte) ' ');
+            putInt(out, port);
+            out.put((byte) ' ');
+            putInt(out, hops);
+            if (attempt == 0) {
+                // The count takes no more digits once it is lowered, so the names which fit now still fit.
+                length = out.position();
+                count = 0;
+                for (String fileName : fileNames) {
+                    length += utf8Length(fileName) + 3;
+                    if (length > limit) {
+                        break;
+                    }
+                    count++;
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            out.put((byte) ' ').put((byte) '"');
+            putAscii(out, fileNames.get(i));
+            out.put((byte) '"');
+        }
+        putQueryId(out, queryId);
+        end(out);
+        return count;
+    }
+
+    /**
+     * Renders an encoded or received datagram for logging.
+     */
+    public static String toString(ByteBuffer datagram) {
+        if (datagram.remaining() > 0 && datagram.get(datagram.position()) == BINARY_VERSION) {
+            Message message = new Message();
+            decode(datagram.slice(), message);
+            return message.toString();
+        }
+        ByteBuffer view = datagram.duplicate();
+        byte[] bytes = new byte[view.remaining()];
+        view.get(bytes);
+        return new String(bytes, Message.CHARSET);
+    }
+
+
+    /**
+     * Reads the opcode of an encoded datagram without decoding it.
+     *
+     * @param datagram encoded datagram, from its position to the limit.
+     * @return opcode of the datagram, {@link Message#UNKNOWN} if it is not a valid message.
+     */
+    public static byte peekOpcode(ByteBuffer datagram) {
+        int start = datagram.position();
+        if (datagram.remaining() < 2) {
+            return Message.UNKNOWN;
+        }
+        if (datagram.get(start) == BINARY_VERSION) {
+            return datagram.get(start + 1);
+        }
+        int commandStart = start + 5;
+        int commandEnd = commandStart;
+        while (commandEnd < datagram.limit() && datagram.get(commandEnd) != ' ') {
+            commandEnd++;
+        }
+        return commandStart < commandEnd ? opcode(datagram, commandStart, commandEnd) : Message.UNKNOWN;
+    }
+
+    static String command(byte opcode) {
+        return opcode > 0 && opcode < COMMANDS.length ? new String(COMMANDS[opcode], Message.CHARSET) : "UNKNOWN";
+    }
+
+    private static void decodeBinary(ByteBuffer datagram, Message message) {
+        if (datagram.get(0) != BINARY_VERSION) {
+            throw new IllegalArgumentException("Unsupported binary version " + (datagram.get(0) & 0xFF));
+        }
+        message.binary = true;
+        message.opcode = datagram.get(1);
+        datagram.position(2);
+        try {
+            switch (message.opcode) {
+                case Message.SER:
+                    message.queryId = getVarint(datagram);
+                    byte flags = datagram.get();
+                    message.originBinary = (flags & FLAG_ORIGIN_BINARY) != 0;
+                    message.walk = (flags & FLAG_WALK) != 0;
+                    message.ipv4 = datagram.getInt() & 0xFFFFFFFFL;
+                    message.port = datagram.getShort() & 0xFFFF;
+                    message.hops = (int) getVarint(datagram);
+                    message.queryLength = (int) getVarint(datagram);
+                    message.queryOffset = datagram.position();
+                    datagram.position(message.queryOffset + message.queryLength);
+                    break;
+                case Message.SEROK:
+                    message.queryId = getVarint(datagram);
+                    message.ipv4 = datagram.getInt() & 0xFFFFFFFFL;
+                    message.port = datagram.getShort() & 0xFFFF;
+                    message.hops = (int) getVarint(datagram);
+                    message.value = (int) getVarint(datagram);
+                    for (int i = 0; i < message.value; i++) {
+                        int length = (int) getVarint(datagram);
+                        message.addItem(datagram.position(), length, 0);
+                        datagram.position(datagram.position() + length);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported binary opcode " + message.opcode);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated binary message", e);
+        } finally {
+            datagram.position(0);
+        }
+    }
+
+    private static void putVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static int varintLength(long value) {
+        int length = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    private static long getVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Invalid varint");
+    }
+
+    // writes the dotted IP address of a message in either format
+    private static void putIP(ByteBuffer out, Message message) {
+        if (message.binary) {
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                putInt(out, (int) ((message.ipv4 >>> shift) & 0xFF));
+                if (shift > 0) {
+                    out.put((byte) '.');
+                }
+            }
+        } else {
+            copy(out, message.data, message.ipOffset, message.ipLength);
+        }
+    }
+
+    private static void encodeBootstrapRequest(ByteBuffer out, byte opcode, String ip, int port, String username) {
+        begin(out, opcode);
+        putAscii(out, ip);
+        out.put((byte) ' ');
+        putInt(out, port);
+        out.put((byte) ' ');
+        putAscii(out, username);
+        end(out);
+    }
+
+    private static void encodeAddress(ByteBuffer out, byte opcode, String ip, int port) {
+        begin(out, opcode);
+        putAscii(out, ip);
+        out.put((byte) ' ');
+        putInt(out, port);
+        end(out);
+    }
+
+    private static void encodeStatus(ByteBuffer out, byte opcode, int value) {
+        begin(out, opcode);
+        putInt(out, value);
+        end(out);
+    }
+
+    // writes the length placeholder and the command
+    private static void begin(ByteBuffer out, byte opcode) {
+        out.clear();
+        out.put((byte) '0').put((byte) '0').put((byte) '0').put((byte) '0').put((byte) ' ');
+        out.put(COMMANDS[opcode]);
+        if (opcode != Message.ERROR) {
+            out.put((byte) ' ');
+        }
+    }
+
+    // fills in the length prefix and flips the buffer
+    private static void end(ByteBuffer out) {
+        int length = out.position();
+        if (length > MAX_LENGTH) {
+            throw new IllegalArgumentException("Message of " + length + " bytes exceeds the protocol limit");
+        }
+        for (int i = 3; i >= 0; i--) {
+            out.put(i, (byte) ('0' + length % 10));
+            length /= 10;
+        }
+        out.flip();
+    }
+
+    private static void putAscii(ByteBuffer out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) >= 0x80) {
+                // Rare non ASCII names, encode the remainder as a whole.
+                out.put(value.substring(i).getBytes(Message.CHARSET));
+                return;
+            }
+            out.put((byte) value.charAt(i));
+        }
+    }
+
+    // number of bytes of the string in UTF-8, as written by putAscii
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static void putInt(ByteBuffer out, int value) {
+        putLong(out, value);
+    }
+
+    private static void putLong(ByteBuffer out, long value) {
+        if (value < 0) {
+            out.put((byte) '-');
+            value = -value;
+        }
+        long divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        while (divisor > 0) {
+            out.put((byte) ('0' + (value / divisor) % 10));
+            divisor /= 10;
+        }
+    }
+
+    private static void putQueryId(ByteBuffer out, long queryId) {
+        if (queryId != 0) {
+            out.put((byte) ' ');
+            putLong(out, queryId);
+        }
+    }
+
+    private static void putWalk(ByteBuffer out, boolean walk) {
+        if (walk) {
+            out.put((byte) ' ').put(WALK);
+        }
+    }
+
+    private static byte searchFlags(boolean originBinary, boolean walk) {
+        return (byte) ((originBinary ? FLAG_ORIGIN_BINARY : 0) | (walk ? FLAG_WALK : 0));
+    }
+
+    private static void copy(ByteBuffer out, ByteBuffer source, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            out.put(source.get(offset + i));
+        }
+    }
+
+    private static void readAddress(Scanner scanner, Message message) {
+        message.ipOffset = scanner.skipSpaces();
+        int ipEnd = scanner.tokenEnd();
+        message.ipLength = ipEnd - message.ipOffset;
+        message.ipv4 = checkAddress(NodeData.parseIPv4(scanner, message.ipOffset, ipEnd), message.ipOffset);
+        scanner.position = ipEnd;
+        message.port = checkPort(scanner.readInt());
+    }
+
+    // The protocol only carries IPv4 literals, so a host name never reaches a name service lookup or a node key.
+    private static long checkAddress(long ipv4, int offset) {
+        if (ipv4 < 0) {
+            throw new IllegalArgumentException("Invalid IPv4 address at offset " + offset);
+        }
+        return ipv4;
+    }
+
+    private static int checkPort(int port) {
+        if (!NodeData.isPort(port)) {
+            throw new IllegalArgumentException("Port out of range: " + port);
+        }
+        return port;
+    }
+
+    private static byte opcode(ByteBuffer datagram, int start, int end) {
+        for (byte opcode = 1; opcode < COMMANDS.length; opcode++) {
+            byte[] command = COMMANDS[opcode];
+            if (command.length == end - start) {
+                int i = 0;
+                while (i < command.length && command[i] == datagram.get(start + i)) {
+                    i++;
+                }
+                if (i == command.length) {
+                    return opcode;
+                }
+            }
+        }
+        return Message.UNKNOWN;
+    }
+
+    private static byte[] bytes(String command) {
+        return command.getBytes(Message.CHARSET);
+    }
+
+    /**
+     * Cursor over the bytes of a datagram, owned by the message being decoded.
+     * The bytes read as characters one for one, which is enough for the ASCII parts of a message.
+     */
+    static class Scanner implements CharSequence {
+        private ByteBuffer data;
+        private int limit;
+        private int position;
+
+        void reset(ByteBuffer data) {
+            this.data = data;
+            this.limit = data.limit();
+            this.position = 0;
+        }
+
+        // moves past spaces and returns the new position
+        int skipSpaces() {
+            while (position < limit && data.get(position) == ' ') {
+                position++;
+            }
+            return position;
+        }
+
+        // end of the token starting at the current position
+        int tokenEnd() {
+            int end = position;
+            while (end < limit && data.get(end) != ' ') {
+                end++;
+            }
+            return end;
+        }
+
+        int readInt() {
+            long value = readLong();
+            if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Number out of range at offset " + position);
+            }
+            return (int) value;
+        }
+
+        long readLong() {
+            skipSpaces();
+            boolean negative = position < limit && data.get(position) == '-';
+            if (negative) {
+                position++;
+            }
+            int start = position;
+            long value = 0;
+            while (position < limit && data.get(position) != ' ') {
+                byte digit = data.get(position);
+                if (digit < '0' || digit > '9') {
+                    throw new IllegalArgumentException("Invalid number at offset " + position);
+                }
+                value = value * 10 + (digit - '0');
+                position++;
+            }
+            if (position == start) {
+                throw new IllegalArgumentException("Missing number at offset " + position);
+            }
+            return negative ? -value : value;
+        }
+
+        // true if the next token equals the given bytes, the position moves past it when it does
+        boolean nextTokenEquals(byte[] token) {
+            int start = skipSpaces();
+            int end = tokenEnd();
+            if (end - start != token.length) {
+                return false;
+            }
+            for (int i = 0; i < token.length; i++) {
+                if (data.get(start + i) != token[i]) {
+                    return false;
+                }
+            }
+            position = end;
+            return true;
+        }
+
+        boolean isNumber(int start, int end) {
+            if (start >= end) {
+                return false;
+            }
+            for (int i = start; i < end; i++) {
+                byte b = data.get(i);
+                if (b < '0' || b > '9') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int lastIndexOf(char c) {
+            for (int i = limit - 1; i >= position; i--) {
+                if (data.get(i) == c) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // finds the quote that closes a name, which is followed by a space or the end of the message
+        int closingQuote(int from) {
+            for (int i = from; i < limit; i++) {
+                if (data.get(i) == '"' && (i + 1 == limit || data.get(i + 1) == ' ')) {
+                    return i;
+                }
+            }
+            throw new IllegalArgumentException("Unterminated file name");
+        }
+
+        public int length() {
+            return limit;
+        }
+
+        public char charAt(int index) {
+            return (char) (data.get(index) & 0xFF);
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            StringBuilder builder = new StringBuilder(end - start);
+            for (int i = start; i < end; i++) {
+                builder.append(charAt(i));
+            }
+            return builder;
+        }
+    }
+}
@@ -0,0 +1,393 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Handles the node requests received by the UDP message services and sends the responses.
+ * The transports only receive and decode datagrams, everything from here on is shared between them.
+ * Requests may be dispatched from several worker threads at once.
+ * The dispatcher also remembers which neighbours agreed to the binary format while joining, and uses it
+ * for the SER and SEROK messages it sends to them.
+ * The traffic of the node is counted in the {@link MetricsRegistry} of the service. The transports report the
+ * datagrams they receive and the replies they exchange in client mode through {@link #onReceived(Message)} and
+ * {@link #onSent(ByteBuffer)}.
+ */
+public class MessageDispatcher {
+
+    /**
+     * Transport specific sending of an encoded datagram.
+     */
+    public interface DatagramSender {
+        /**
+         * Sends the datagram. The sender owns the buffer afterwards and releases it to the pool once it is written.
+         */
+        void send(ByteBuffer datagram, InetSocketAddress target) throws IOException;
+    }
+
+    private final BufferPool bufferPool;
+    private final DatagramSender sender;
+    private final Set<Long> binaryPeers = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private final AddressCache addresses;
+    private final SeenQueryCache seenQueries = new SeenQueryCache(Configuration.QUERY_CACHE_SIZE, Configuration.QUERY_CACHE_TTL);
+    private final ForwardTable forwards = new ForwardTable(Configuration.QUERY_CACHE_SIZE, Configuration.QUERY_CACHE_TTL);
+    private volatile MessageReceivedEvent receivedEvent = null;
+    private final LongAdder[] messagesIn = new LongAdder[Message.OPCODE_COUNT];
+    private final LongAdder[] messagesOut = new LongAdder[Message.OPCODE_COUNT];
+    private final LongAdder bytesIn;
+    private final LongAdder bytesOut;
+    private final LongAdder sendErrors;
+    private final LongAdder receivedQueries;
+    private final LongAdder forwardedQueries;
+    private final LongAdder answeredQueries;
+    private final LongAdder duplicateQueries;
+    private final LongAdder cancelledQueries;
+
+    /**
+     * @param bufferPool pool the encoded datagrams are leased from.
+     * @param sender     transport the datagrams are sent with.
+     * @param metrics    registry the traffic is counted in.
+     */
+    public MessageDispatcher(BufferPool bufferPool, DatagramSender sender, MetricsRegistry metrics) {
+        this.bufferPool = bufferPool;
+        this.sender = sender;
+        for (byte opcode = 0; opcode < messagesIn.length; opcode++) {
+            messagesIn[opcode] = metrics.counter("messages.in." + MessageCodec.command(opcode));
+            messagesOut[opcode] = metrics.counter("messages.out." + MessageCodec.command(opcode));
+        }
+        bytesIn = metrics.counter("bytes.in");
+        bytesOut = metrics.counter("bytes.out");
+        sendErrors = metrics.counter("send.errors");
+        receivedQueries = metrics.counter("queries.received");
+        forwardedQueries = metrics.counter("queries.forwarded");
+        answeredQueries = metrics.counter("queries.answered");
+        duplicateQueries = metrics.counter("queries.duplicate");
+        cancelledQueries = metrics.counter("queries.cancelled");
+        addresses = new AddressCache(Configuration.ADDRESS_CACHE_SIZE, metrics);
+    }
+
+    public void setReceivedEvent(MessageReceivedEvent receivedEvent) {
+        this.receivedEvent = receivedEvent;
+    }
+
+    /**
+     * Records the response of a successful join started by this node.
+     *
+     * @param neighbor neighbour node details.
+     * @param response JOINOK received from the neighbour.
+     */
+    public void onJoined(NodeData neighbor, Message response) {
+        long peer = neighbor.getKey();
+        if (Configuration.BINARY_PROTOCOL && response.isBinaryCapable() && peer >= 0) {
+            binaryPeers.add(peer);
+        }
+        addresses.get(neighbor);
+    }
+
+    /**
+     * Forgets a neighbour this node left.
+     *
+     * @param neighbor neighbour node details.
+     */
+    public void onLeft(NodeData neighbor) {
+        binaryPeers.remove(neighbor.getKey());
+    }
+
+    /**
+     * Sends a new search request on behalf of this node.
+     *
+     * @param query    search query.
+     * @param queryId  unique id of the query.
+     * @param hops     number of times the query may be forwarded after the neighbour.
+     * @param walk     true to send the query as a random walker, which each node forwards to a single neighbour.
+     * @param nodeData node details of the searching node.
+     * @param neighbor node details of the neighbour.
+     * @throws IllegalArgumentException if the query does not fit in a datagram.
+     */
+    public void search(String query, long queryId, int hops, boolean walk, NodeData nodeData, NodeData neighbor) throws IOException {
+        // Copies of our own query that find their way back are duplicates as well, walkers may pass any node again.
+        if (!walk) {
+            seenQueries.markSeen(queryId);
+        }
+        ByteBuffer request = bufferPool.lease();
+        long ipv4 = NodeData.parseIPv4(nodeData.getIP());
+        try {
+            if (ipv4 >= 0 && isBinaryPeer(neighbor)) {
+                MessageCodec.encodeSearchBinary(request, queryId, true, ipv4, nodeData.getPort(), query, hops, walk);
+            } else {
+                MessageCodec.encodeSearch(request, queryId, nodeData.getIP(), nodeData.getPort(), query, hops, walk);
+            }
+        } catch (RuntimeException e) {
+            bufferPool.release(request);
+            throw new IllegalArgumentException("Query of " + query.length() + " characters does not fit in a datagram", e);
+        }
+        if (Log.isDebugEnabled()) {
+            Log.debug("Sending ({}) to Neighbor at {}", MessageCodec.toString(request), neighbor);
+        }
+        forwards.addForward(queryId, neighbor);
+        transmit(Message.SER, request, addresses.get(neighbor));
+    }
+
+    /**
+     * Cancels a query of this node, the neighbours it was sent to pass the cancel on along the paths it took.
+     *
+     * @param queryId  id the query was sent with.
+     * @param nodeData node details of this node.
+     */
+    public void cancel(long queryId, NodeData nodeData) throws IOException {
+        sendCancel(queryId, nodeData.getIP(), nodeData.getPort(), forwards.cancel(queryId));
+    }
+
+    /**
+     * Sends the catalog summary of this node to a neighbour.
+     *
+     * @param nodeData node details of this node.
+     * @param neighbor node details of the neighbour.
+     * @param catalog  Bloom filter of the terms in the file names of this node.
+     */
+    public void publishCatalog(NodeData nodeData, NodeData neighbor, BloomFilter catalog) throws IOException {
+        ByteBuffer request = bufferPool.lease();
+        MessageCodec.encodeCatalog(request, nodeData.getIP(), nodeData.getPort(), catalog);
+        send(Message.CATALOG, request, addresses.get(neighbor));
+    }
+
+    /**
+     * Handles a received request.
+     *
+     * @param message       decoded message, only valid until this returns.
+     * @param sourceAddress address the datagram was received from.
+     * @param sourcePort    port the datagram was received from.
+     */
+    public void dispatch(Message message, InetAddress sourceAddress, int sourcePort) throws IOException {
+        Log.debug("Node request received ({})", message);
+
+        MessageReceivedEvent receivedEvent = this.receivedEvent;
+        if (receivedEvent == null) {
+            Log.debug("Not accepting node requests, dropping the request.");
+            return;
+        }
+
+        switch (message.getOpcode()) {
+            case Message.JOIN: {
+                String ip = message.getIP();
+                int port = message.getPort();
+                NodeData joiningNode = new NodeData(ip, port, null);
+                boolean result = receivedEvent.onJoin(joiningNode);
+                boolean binary = Configuration.BINARY_PROTOCOL && message.isBinaryCapable() && message.getIPv4() >= 0;
+                if (result && binary) {
+                    binaryPeers.add(peerKey(message.getIPv4(), port));
+                }
+
+                ByteBuffer response = bufferPool.lease();
+                MessageCodec.encodeJoinOk(response, result ? 0 : 9999, binary);
+                // Resolves the address kept by the new neighbour in the neighbour table.
+                send(Message.JOINOK, response, addresses.get(joiningNode));
+                break;
+            }
+            case Message.LEAVE: {
+                String ip = message.getIP();
+                int port = message.getPort();
+                boolean result = receivedEvent.onLeave(new NodeData(ip, port, null));
+                binaryPeers.remove(peerKey(message.getIPv4(), port));
+
+                ByteBuffer response = bufferPool.lease();
+                MessageCodec.encodeLeaveOk(response, result ? 0 : 9999);
+                send(Message.LEAVEOK, response, addresses.get(message.getIPv4(), port));
+                break;
+            }
+            case Message.SER:
+                receivedQueries.increment();
+                if (forwards.isCancelled(message.getQueryId())) {
+                    cancelledQueries.increment();
+                    Log.debug("Dropping cancelled query {}", message.getQueryId());
+                // A walker is a single copy of the query which may come by again.
+                } else if (message.isWalk() || seenQueries.markSeen(message.getQueryId())) {
+                    onSearch(receivedEvent, message, sourceAddress, sourcePort);
+                } else {
+                    duplicateQueries.increment();
+                    Log.debug("Dropping duplicate query {}", message.getQueryId());
+                }
+                break;
+            case Message.SEROK:
+                onSearchSuccess(receivedEvent, message);
+                break;
+            case Message.CATALOG: {
+                BloomFilter catalog;
+                try {
+                    catalog = message.getCatalog();
+                } catch (IllegalArgumentException e) {
+                    Log.warn("Dropping malformed catalog from {}:{}: {}", message.getIP(), message.getPort(), e.getMessage());
+                    break;
+                }
+                receivedEvent.onCatalog(new NodeData(message.getIP(), message.getPort(), null), catalog);
+                break;
+            }
+            case Message.CANCEL:
+                Log.debug("Query {} of {}:{} cancelled", message.getQueryId(), message.getIP(), message.getPort());
+                sendCancel(message.getQueryId(), message.getIP(), message.getPort(), forwards.cancel(message.getQueryId()));
+                break;
+            case Message.ERROR:
+                Log.warn("Error response received from {}:{}", sourceAddress.getHostAddress(), sourcePort);
+                break;
+            case Message.REGOK:
+            case Message.UNROK:
+            case Message.JOINOK:
+            case Message.LEAVEOK:
+                Log.debug("Dropping unexpected response from {}:{}", sourceAddress.getHostAddress(), sourcePort);
+                break;
+            default: {
+                ByteBuffer response = bufferPool.lease();
+                MessageCodec.encodeError(response);
+                send(Message.ERROR, response, new InetSocketAddress(sourceAddress, sourcePort));
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return resolved address of the node, see {@link AddressCache#get(NodeData)}.
+     */
+    public InetSocketAddress resolve(NodeData nodeData) {
+        return addresses.get(nodeData);
+    }
+
+    /**
+     * Counts a datagram received by the transport, whether it is dispatched here or is a reply to client mode.
+     */
+    public void onReceived(Message message) {
+        messagesIn[message.getOpcode()].increment();
+        bytesIn.add(message.getLength());
+    }
+
+    /**
+     * Counts a datagram the transport sent on its own, such as a client mode request.
+     */
+    public void onSent(ByteBuffer datagram) {
+        byte opcode = MessageCodec.peekOpcode(datagram);
+        messagesOut[opcode >= 0 && opcode < messagesOut.length ? opcode : Message.UNKNOWN].increment();
+        bytesOut.add(datagram.remaining());
+    }
+
+    /**
+     * Counts a datagram the transport failed to send.
+     */
+    public void onSendError() {
+        sendErrors.increment();
+    }
+
+    private void onSearch(MessageReceivedEvent receivedEvent, Message message, InetAddress sourceAddress, int sourcePort)
+            throws IOException {
+        String ip = message.getIP();
+        int port = message.getPort();
+        int hops = message.getHops();
+        boolean originBinary = message.isOriginBinary() || binaryPeers.contains(peerKey(message.getIPv4(), port));
+
+        SearchResult searchResult = receivedEvent.onSearch(message.getQuery(), hops, message.isWalk(),
+                new NodeData(ip, port, null), new NodeData(sourceAddress.getHostAddress(), sourcePort, null));
+
+        // Send message according to the search result.
+        if (searchResult.isSuccess()) {
+            Log.debug("Search success Node: {}", searchResult.getOwnerNode());
+            NodeData owner = searchResult.getOwnerNode();
+            long ownerIPv4 = NodeData.parseIPv4(owner.getIP());
+            ByteBuffer response = bufferPool.lease();
+            List<String> fileNames = searchResult.getMatchingFileNames();
+            int sentNames;
+            if (originBinary && ownerIPv4 >= 0) {
+                sentNames = MessageCodec.encodeSearchOkBinary(response, message.getQueryId(), ownerIPv4, owner.getPort(), hops,
+                        fileNames);
+            } else {
+                sentNames = MessageCodec.encodeSearchOk(response, message.getQueryId(), owner.getIP(), owner.getPort(), hops, fileNames);
+            }
+            if (sentNames < fileNames.size()) {
+                Log.warn("Only {} of {} matching file names fit in the answer to {}:{}", sentNames, fileNames.size(), ip, port);
+            }
+            send(Message.SEROK, response, addresses.get(message.getIPv4(), port));
+            answeredQueries.increment();
+        } else {
+            Log.debug("Search fail Node: {}", searchResult.getOwnerNode());
+            if (hops > 0) {
+                for (NodeData selectedNeighbour : searchResult.getSelectedNeighbours()) {
+                    ByteBuffer request = bufferPool.lease();
+                    boolean binary = message.getIPv4() >= 0 && isBinaryPeer(selectedNeighbour);
+                    try {
+                        MessageCodec.encodeSearchForward(request, message, hops - 1, binary, originBinary);
+                    } catch (RuntimeException e) {
+                        // A received query close to the limit may grow past it in the other format.
+                        bufferPool.release(request);
+                        Log.warn("Could not forward query {} to {}: {}", message.getQueryId(), selectedNeighbour, e.toString());
+                        continue;
+                    }
+                    forwards.addForward(message.getQueryId(), selectedNeighbour);
+                    send(Message.SER, request, addresses.get(selectedNeighbour));
+                    forwardedQueries.increment();
+                }
+            } else {
+                Log.debug("Hop is 0, dropping the request. Node: {}", searchResult.getOwnerNode());
+            }
+        }
+    }
+
+    private void onSearchSuccess(MessageReceivedEvent receivedEvent, Message message) {
+        List<String> fileNames = new ArrayList<String>(message.getItemCount());
+        for (int i = 0; i < message.getItemCount(); i++) {
+            fileNames.add(message.getFileName(i));
+        }
+
+        if (message.getValue() != fileNames.size()) {
+            Log.warn("Could not recover file names.");
+        }
+
+        SearchResult searchResult = new SearchResult();
+        searchResult.setSuccess(true);
+        searchResult.setQueryId(message.getQueryId());
+        searchResult.setMatchingFileNames(fileNames);
+        searchResult.setOwnerNode(new NodeData(message.getIP(), message.getPort(), null));
+        searchResult.setHopCount(Configuration.HOPS_MAX - message.getHops());
+        searchResult.setRemainingHops(message.getHops());
+        receivedEvent.onSearchSuccess(searchResult);
+    }
+
+    // passes a cancel on to the neighbours the query was sent to
+    private void sendCancel(long queryId, String ip, int port, List<NodeData> neighbors) throws IOException {
+        for (NodeData neighbor : neighbors) {
+            ByteBuffer request = bufferPool.lease();
+            MessageCodec.encodeCancel(request, ip, port, queryId);
+            send(Message.CANCEL, request, addresses.get(neighbor));
+        }
+    }
+
+    private boolean isBinaryPeer(NodeData nodeData) {
+        return !binaryPeers.isEmpty() && binaryPeers.contains(nodeData.getKey());
+    }
+
+    // packs an IPv4 address and port, -1 if the address is not IPv4
+    private static long peerKey(long ipv4, int port) {
+        return ipv4 < 0 ? -1 : (ipv4 << 16) | port;
+    }
+
+    private void send(byte opcode, ByteBuffer datagram, InetSocketAddress target) throws IOException {
+        if (Log.isDebugEnabled()) {
+            Log.debug("Sending ({}) to Node at {}", MessageCodec.toString(datagram), target);
+        }
+        transmit(opcode, datagram, target);
+    }
+
+    // counts and sends the datagram, the sender owns the buffer afterwards
+    private void transmit(byte opcode, ByteBuffer datagram, InetSocketAddress target) throws IOException {
+        messagesOut[opcode].increment();
+        bytesOut.add(datagram.remaining());
+        try {
+            sender.send(datagram, target);
+        } catch (IOException e) {
+            sendErrors.increment();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongSupplier;
+
+/**
+ * Named counters, maximums and gauges of a message service.
+ * Counters are {@link LongAdder}s and maximums {@link LongAccumulator}s, so the receiving and worker threads can
+ * update them without contention while the statistics are read and reset from the command line. Gauges report
+ * a value owned by another component, such as the depth of a queue, when they are read.
+ * Components should look their counters up once and keep them, rather than by name on every update.
+ */
+public class MetricsRegistry {
+
+    private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+        public long applyAsLong(long left, long right) {
+            return Math.max(left, right);
+        }
+    };
+
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+    private final ConcurrentHashMap<String, LongAccumulator> maximums = new ConcurrentHashMap<String, LongAccumulator>();
+    private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<String, LongSupplier>();
+
+    /**
+     * @return counter of the given name, created on first use.
+     */
+    public LongAdder counter(String name) {
+        LongAdder counter = counters.get(name);
+        if (counter == null) {
+            LongAdder newCounter = new LongAdder();
+            counter = counters.putIfAbsent(name, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * @return maximum of the given name, created on first use. It keeps the largest value accumulated since
+     * the last reset.
+     */
+    public LongAccumulator maximum(String name) {
+        LongAccumulator maximum = maximums.get(name);
+        if (maximum == null) {
+            LongAccumulator newMaximum = new LongAccumulator(MAX, 0);
+            maximum = maximums.putIfAbsent(name, newMaximum);
+            if (maximum == null) {
+                maximum = newMaximum;
+            }
+        }
+        return maximum;
+    }
+
+    /**
+     * Registers a gauge, replacing any gauge of the same name.
+     */
+    public void gauge(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * @return current value of the counter, maximum or gauge of the given name, 0 if there is none.
+     */
+    public long get(String name) {
+        LongAdder counter = counters.get(name);
+        if (counter != null) {
+            return counter.sum();
+        }
+        LongAccumulator maximum = maximums.get(name);
+        if (maximum != null) {
+            return maximum.get();
+        }
+        LongSupplier gauge = gauges.get(name);
+        return gauge != null ? gauge.getAsLong() : 0;
+    }
+
+    /**
+     * @return values of all counters, maximums and gauges, sorted by name.
+     */
+    public SortedMap<String, Long> snapshot() {
+        SortedMap<String, Long> values = new TreeMap<String, Long>();
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            values.put(counter.getKey(), counter.getValue().sum());
+        }
+        for (Map.Entry<String, LongAccumulator> maximum : maximums.entrySet()) {
+            values.put(maximum.getKey(), maximum.getValue().get());
+        }
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            values.put(gauge.getKey(), gauge.getValue().getAsLong());
+        }
+        return values;
+    }
+
+    /**
+     * Resets all counters and maximums. Gauges report the state of their components and are not affected.
+     */
+    public void reset() {
+        for (LongAdder counter : counters.values()) {
+            counter.reset();
+        }
+        for (LongAccumulator maximum : maximums.values()) {
+            maximum.reset();
+        }
+    }
+}
@@ -0,0 +1,449 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking UDP implementation of the communication using a {@link DatagramChannel} and a {@link Selector}.
+ * A single event loop thread owns the channel. It is the only reader, so replies to JOIN, LEAVE, REG and UNREG
+ * are handed over to the waiting caller instead of being consumed by whichever thread happened to call receive.
+ * Received datagrams are decoded and handled by the workers of a {@link DispatchQueue}, and outgoing datagrams
+ * are queued and written by the event loop when the channel is writable.
+ */
+public class NIOMessageService implements MessageService {
+
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final BufferPool bufferPool = new BufferPool(Configuration.BUFFER_POOL_SIZE, Configuration.DATAGRAM_SIZE, Configuration.BUFFER_DIRECT,
+            metrics);
+    private final MessageDispatcher dispatcher = new MessageDispatcher(bufferPool, new ChannelSender(), metrics);
+    private final DispatchQueue dispatchQueue = new DispatchQueue("nio", bufferPool, new DispatchQueue.Handler() {
+        public void handle(Message message, InetAddress sourceAddress, int sourcePort) throws IOException {
+            dispatcher.onReceived(message);
+            if (message.isReply()) {
+                completeReply(message, new InetSocketAddress(sourceAddress, sourcePort));
+            } else {
+                dispatcher.dispatch(message, sourceAddress, sourcePort);
+            }
+        }
+    }, Configuration.WORKER_THREADS, Configuration.RECEIVE_QUEUE_SIZE, metrics);
+    private DatagramChannel channel = null;
+    private InetSocketAddress bootstrapAddress = null;
+    private volatile Selector selector = null;
+    private Thread eventLoopThread = null;
+    private volatile boolean running = false;
+    // Set once the event loop stopped for good, from then on a sender releases what it queued itself.
+    private volatile boolean drained = false;
+    private final Queue<OutgoingMessage> sendQueue = new ConcurrentLinkedQueue<OutgoingMessage>();
+    private final Map<String, BlockingQueue<Message>> pendingReplies = new ConcurrentHashMap<String, BlockingQueue<Message>>();
+
+    /**
+     * Register with bootstrap server.
+     *
+     * @param nodeData node details that request registering
+     * @return list of neighbours given from the bootstrap server.
+     */
+    public List<NodeData> register(NodeData nodeData) {
+
+        if (bootstrapAddress == null) {
+            bootstrapAddress = AddressCache.lookup(Configuration.BOOTSTRAP_IP, Configuration.BOOTSTRAP_PORT);
+        }
+        if (channel == null) {
+            try {
+                Log.info("Binding UDP channel to {}:{}", nodeData.getIP(), nodeData.getPort());
+                open(nodeData.getPort());
+                Log.info("Binding Successful");
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to bind UDP channel port " + nodeData.getPort(), e);
+            }
+        }
+
+        ByteBuffer request = bufferPool.lease();
+        MessageCodec.encodeRegister(request, nodeData.getIP(), nodeData.getPort(), nodeData.getUsername());
+        Message bootstrapMessage = sendAndReceive(request, bootstrapAddress, Message.REGOK);
+
+        List<NodeData> randNeighbours = new ArrayList<NodeData>();
+        int nodeCount = bootstrapMessage.getValue();
+        if (nodeCount < 5) {
+            for (int i = 0; i < nodeCount; i++) {
+                randNeighbours.add(new NodeData(bootstrapMessage.getNodeIP(i), bootstrapMessage.getNodePort(i), null));
+            }
+        } else {
+            Log.warn("Error registering to Bootstrap server: {}", nodeCount);
+        }
+
+        return randNeighbours;
+    }
+
+    /**
+     * Unregister with bootstrap server. The channel is closed afterwards, a later call to register opens it again.
+     *
+     * @param nodeData node details that request unregistering
+     * @return true if unregistration was successful.
+     */
+    public boolean unregister(NodeData nodeData) {
+
+        boolean unregistered = false;
+        if (channel != null) {
+
+            ByteBuffer request = bufferPool.lease();
+            MessageCodec.encodeUnregister(request, nodeData.getIP(), nodeData.getPort(), nodeData.getUsername());
+            Message bootstrapMessage = sendAndReceive(request, bootstrapAddress, Message.UNROK);
+
+            int value = bootstrapMessage.getValue();
+            if (value < 1) {
+                unregistered = true;
+            } else {
+                Log.warn("Error unregistering from Bootstrap server: {}", value);
+            }
+
+            close();
+        }
+        return unregistered;
+    }
+
+    /**
+     * Join with a neighbour in the network.
+     *
+     * @param nodeData node details that request joining.
+     * @param neighbor neighbour node details.
+     * @return true if join was successful.
+     */
+    public boolean join(NodeData nodeData, NodeData neighbor) {
+        if (channel != null) {
+
+            ByteBuffer request = bufferPool.lease();
+            MessageCodec.encodeJoin(request, nodeData.getIP(), nodeData.getPort(), Configuration.BINARY_PROTOCOL);
+            Message nodeMessage = sendAndReceive(request, dispatcher.resolve(neighbor), Message.JOINOK);
+
+            int value = nodeMessage.getValue();
+            if (value < 1) {
+                dispatcher.onJoined(neighbor, nodeMessage);
+                return true;
+            } else {
+                Log.warn("Error joining to node {}", value);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Leave from a neighbour in the network.
+     *
+     * @param nodeData node details that request leaving.
+     * @param neighbor neighbour node details.
+     * @return true if leave was successful.
+     */
+    public boolean leave(NodeData nodeData, NodeData neighbor) {
+        if (channel != null) {
+
+            ByteBuffer request = bufferPool.lease();
+            MessageCodec.encodeLeave(request, nodeData.getIP(), nodeData.getPort());
+            Message nodeMessage = sendAndReceive(request, dispatcher.resolve(neighbor), Message.LEAVEOK);
+            dispatcher.onLeft(neighbor);
+
+            int value = nodeMessage.getValue();
+            if (value < 1) {
+                return true;
+            } else {
+                Log.warn("Error leaving from node {}", value);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends a search request to a neighbour.
+     *
+     * @param filename search file name.
+     * @param queryId  unique id of the query.
+     * @param hops     number of times the query may be forwarded after the neighbour.
+     * @param walk     true to send the query as a random walker, which each node forwards to a single neighbour.
+     * @param nodeData node details of the searching node
+     * @param neighbor node details of the neighbour.
+     */
+    public void search(String filename, long queryId, int hops, boolean walk, NodeData nodeData, NodeData neighbor) {
+        try {
+            dispatcher.search(filename, queryId, hops, walk, nodeData, neighbor);
+        } catch (IOException e) {
+            Log.error("Could not send search request to " + neighbor, e);
+        }
+    }
+
+    /**
+     * Cancels a query of this node along the paths it was sent on.
+     *
+     * @param queryId  id the query was sent with.
+     * @param nodeData node details of this node.
+     */
+    public void cancel(long queryId, NodeData nodeData) {
+        try {
+            dispatcher.cancel(queryId, nodeData);
+        } catch (IOException e) {
+            Log.error("Could not cancel query " + queryId, e);
+        }
+    }
+
+    public void publishCatalog(NodeData nodeData, NodeData neighbor, BloomFilter catalog) {
+        try {
+            dispatcher.publishCatalog(nodeData, neighbor, catalog);
+        } catch (IOException e) {
+            Log.error("Could not send the catalog to " + neighbor, e);
+        }
+    }
+
+    /**
+     * Starts dispatching node requests to the given callback. The event loop itself is started on register,
+     * since the replies of the bootstrap server and the neighbours are received through it as well.
+     */
+    public void startListening(MessageReceivedEvent receivedEvent) {
+        Log.info("Dispatching node requests to the node...");
+        dispatcher.setReceivedEvent(receivedEvent);
+    }
+
+    /**
+     * Stops dispatching node requests. Replies are still received until unregister closes the channel,
+     * so that the LEAVE messages sent while disconnecting get their responses.
+     */
+    public void stopListening() {
+        Log.info("Stopped dispatching node requests.");
+        dispatcher.setReceivedEvent(null);
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    public void resetStatistics() {
+        metrics.reset();
+    }
+
+    // opens the channel and starts the event loop
+    private void open(int port) throws IOException {
+        selector = Selector.open();
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().bind(new InetSocketAddress(port));
+        channel.register(selector, SelectionKey.OP_READ);
+
+        drained = false;
+        running = true;
+        dispatchQueue.start();
+        eventLoopThread = new Thread(new EventLoop(), "nio-event-loop");
+        eventLoopThread.start();
+    }
+
+    // stops the event loop and closes the channel
+    private void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            eventLoopThread.join();
+            dispatchQueue.stop();
+            selector.close();
+            channel.close();
+            drained = true;
+            drainSendQueue();
+        } catch (InterruptedException e) {
+            Log.error("Interrupted while stopping the event loop", e);
+        } catch (IOException e) {
+            Log.error("Could not close the channel", e);
+        }
+        channel = null;
+        selector = null;
+        eventLoopThread = null;
+    }
+
+    // queues an encoded datagram to be written by the event loop, which releases the buffer afterwards
+    private void send(ByteBuffer datagram, InetSocketAddress target) {
+        Selector currentSelector = selector;
+        if (!running || currentSelector == null) {
+            // A worker or the timer answering after the channel was closed.
+            Log.debug("Channel closed, dropping datagram to {}", target);
+            bufferPool.release(datagram);
+            return;
+        }
+        sendQueue.add(new OutgoingMessage(datagram, target));
+        if (drained) {
+            // The channel was closed after the check above, and close may have drained the queue before the add.
+            drainSendQueue();
+            return;
+        }
+        currentSelector.wakeup();
+    }
+
+    // releases the datagrams queued after the event loop stopped, which are never written
+    private void drainSendQueue() {
+        OutgoingMessage outgoing;
+        while ((outgoing = sendQueue.poll()) != null) {
+            bufferPool.release(outgoing.data);
+        }
+    }
+
+    // client mode communication which waits for the given reply from the target, the request buffer is released
+    private Message sendAndReceive(ByteBuffer request, InetSocketAddress target, byte replyOpcode) {
+        String key = replyKey(replyOpcode, target);
+        try {
+            while (true) {
+                BlockingQueue<Message> reply = new ArrayBlockingQueue<Message>(1);
+                try {
+                    awaitReplyKey(key, reply);
+                    Log.info("Sending ({}) to {}", MessageCodec.toString(request), target);
+                    ByteBuffer datagram = bufferPool.lease();
+                    datagram.put(request.duplicate()).flip();
+                    dispatcher.onSent(datagram);
+                    send(datagram, target);
+
+                    Log.debug("Waiting for response...");
+                    Message response = reply.poll(Configuration.LISTENER_TIMEOUT, TimeUnit.MILLISECONDS);
+                    if (response != null) {
+                        Log.info("Response successful ({})", response);
+                        return response;
+                    }
+                    Log.warn("Connection timeout. Re-connecting...");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for a response from " + target, e);
+                } finally {
+                    pendingReplies.remove(key, reply);
+                    synchronized (reply) {
+                        reply.notifyAll();
+                    }
+                }
+            }
+        } finally {
+            bufferPool.release(request);
+        }
+    }
+
+    // registers the queue the reply is handed to, waiting while another caller expects the same reply from the
+    // same peer, since the reply could not tell the two apart
+    private void awaitReplyKey(String key, BlockingQueue<Message> reply) throws InterruptedException {
+        BlockingQueue<Message> other;
+        while ((other = pendingReplies.putIfAbsent(key, reply)) != null) {
+            synchronized (other) {
+                while (pendingReplies.get(key) == other) {
+                    other.wait();
+                }
+            }
+        }
+    }
+
+    // hands over a reply to the caller waiting for it, only replies from the very address the request went to
+    // are accepted
+    private void completeReply(Message message, InetSocketAddress source) {
+        BlockingQueue<Message> reply = pendingReplies.get(replyKey(message.getOpcode(), source));
+        // The reply outlives the pooled receive buffer.
+        if (reply == null || !reply.offer(message.copy())) {
+            Log.debug("Dropping unexpected reply ({}) from {}", message, source);
+        }
+    }
+
+    private static String replyKey(byte opcode, InetSocketAddress address) {
+        String host = address.getAddress() != null ? address.getAddress().getHostAddress() : address.getHostString();
+        return opcode + " " + host + ":" + address.getPort();
+    }
+
+    /**
+     * Queues the responses and forwards of the dispatcher for the event loop.
+     */
+    private class ChannelSender implements MessageDispatcher.DatagramSender {
+
+        public void send(ByteBuffer datagram, InetSocketAddress target) {
+            NIOMessageService.this.send(datagram, target);
+        }
+    }
+
+    /**
+     * Selector loop which performs all reads and writes of the channel.
+     */
+    private class EventLoop implements Runnable {
+
+        public void run() {
+            Log.info("Event loop started.");
+            while (running) {
+                try {
+                    selector.select(Configuration.LISTENER_TIMEOUT);
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        if (key.isValid() && key.isReadable()) {
+                            receiveAll();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                    flushSendQueue();
+                } catch (IOException e) {
+                    Log.error("Event loop failed to receive", e);
+                }
+            }
+            Log.info("Event loop stopped.");
+        }
+
+        // reads datagrams until the channel has nothing more to offer, handing them to the dispatch queue
+        private void receiveAll() throws IOException {
+            while (true) {
+                ByteBuffer buffer = bufferPool.lease();
+                InetSocketAddress source;
+                try {
+                    source = (InetSocketAddress) channel.receive(buffer);
+                } catch (IOException e) {
+                    bufferPool.release(buffer);
+                    throw e;
+                }
+                if (source == null) {
+                    bufferPool.release(buffer);
+                    return;
+                }
+                buffer.flip();
+                if (!dispatchQueue.submit(buffer, source.getAddress(), source.getPort())) {
+                    Log.warn("Receive queue full, dropping datagram from {}", source);
+                }
+            }
+        }
+
+        // writes queued messages, switching to write interest if the socket buffer is full
+        private void flushSendQueue() {
+            SelectionKey key = channel.keyFor(selector);
+            OutgoingMessage outgoing;
+            while ((outgoing = sendQueue.peek()) != null) {
+                try {
+                    if (channel.send(outgoing.data, outgoing.target) == 0) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                } catch (IOException e) {
+                    // The datagram is dropped, retrying it would hold up everything queued behind it.
+                    dispatcher.onSendError();
+                    Log.warn("Could not send datagram to {}: {}", outgoing.target, e);
+                }
+                sendQueue.poll();
+                bufferPool.release(outgoing.data);
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Datagram waiting to be written by the event loop.
+     */
+    private static class OutgoingMessage {
+        private final ByteBuffer data;
+        private final InetSocketAddress target;
+
+        OutgoingMessage(ByteBuffer data, InetSocketAddress target) {
+            this.data = data;
+            this.target = target;
+        }
+    }
+}
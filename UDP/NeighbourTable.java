@@ -0,0 +1,117 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Neighbour table of a node, keyed by the address and port of the neighbours (see {@link NodeData#getKey()}).
+ * Joins and leaves are rare compared to searches, so every change publishes a new array of the neighbours
+ * and reads, including picking random neighbours, work on the current array without locking or copying.
+ */
+public class NeighbourTable implements Iterable<NodeData> {
+
+    private static final NodeData[] EMPTY = new NodeData[0];
+
+    private final ConcurrentHashMap<Long, NodeData> neighbours = new ConcurrentHashMap<Long, NodeData>();
+    private volatile NodeData[] snapshot = EMPTY;
+
+    /**
+     * @return false if the node is already a neighbour.
+     */
+    public synchronized boolean add(NodeData nodeData) {
+        if (neighbours.putIfAbsent(nodeData.getKey(), nodeData) != null) {
+            return false;
+        }
+        NodeData[] nodes = Arrays.copyOf(snapshot, snapshot.length + 1);
+        nodes[nodes.length - 1] = nodeData;
+        snapshot = nodes;
+        return true;
+    }
+
+    /**
+     * @return false if the node was not a neighbour.
+     */
+    public synchronized boolean remove(NodeData nodeData) {
+        NodeData removed = neighbours.get(nodeData.getKey());
+        if (removed == null || !removed.equals(nodeData)) {
+            return false;
+        }
+        neighbours.remove(nodeData.getKey());
+        NodeData[] nodes = new NodeData[snapshot.length - 1];
+        int i = 0;
+        for (NodeData node : snapshot) {
+            if (node != removed) {
+                nodes[i++] = node;
+            }
+        }
+        snapshot = nodes;
+        return true;
+    }
+
+    /**
+     * @return the neighbour with the given key, see {@link NodeData#getKey()}, or null if there is none.
+     */
+    public NodeData get(long key) {
+        return neighbours.get(key);
+    }
+
+    public boolean contains(NodeData nodeData) {
+        NodeData neighbour = neighbours.get(nodeData.getKey());
+        return neighbour != null && neighbour.equals(nodeData);
+    }
+
+    public int size() {
+        return snapshot.length;
+    }
+
+    /**
+     * Iterates over the neighbours at the time of the call.
+     */
+    public Iterator<NodeData> iterator() {
+        return Collections.unmodifiableList(Arrays.asList(snapshot)).iterator();
+    }
+
+    /**
+     * Picks distinct random neighbours.
+     *
+     * @param count    number of neighbours to pick.
+     * @param excluded nodes which must not be picked.
+     * @return up to count neighbours in random order, fewer if there are not enough.
+     */
+    public List<NodeData> selectRandom(int count, NodeData... excluded) {
+        NodeData[] nodes = snapshot;
+        Random random = ThreadLocalRandom.current();
+        List<NodeData> selected = new ArrayList<NodeData>(Math.min(count, nodes.length));
+        if (nodes.length > count + excluded.length) {
+            // More than enough candidates, so random probes find the next one after a few attempts.
+            while (selected.size() < count) {
+                NodeData candidate = nodes[random.nextInt(nodes.length)];
+                if (!isExcluded(candidate, excluded) && !selected.contains(candidate)) {
+                    selected.add(candidate);
+                }
+            }
+            return selected;
+        }
+        // Few neighbours, take all candidates and drop random ones.
+        for (NodeData node : nodes) {
+            if (!isExcluded(node, excluded)) {
+                selected.add(node);
+            }
+        }
+        Collections.shuffle(selected, random);
+        return selected.size() > count ? new ArrayList<NodeData>(selected.subList(0, count)) : selected;
+    }
+
+    private static boolean isExcluded(NodeData node, NodeData[] excluded) {
+        for (NodeData excludedNode : excluded) {
+            if (node.equals(excludedNode)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,133 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Self-check of the query language: parsing and operator precedence, the canonical form the queries are sent in,
+ * the evaluation against an inverted index and the posting list operations underneath it.
+ * Run with {@code java QueryCheck} from the compiled folder.
+ */
+public class QueryCheck {
+
+    private static final InvertedIndex INDEX = new InvertedIndex(Arrays.asList(
+            "Lord of the Rings", "Harry Potter", "Happy Feet", "Feet of Clay", "The Lord Jim"));
+
+    public static void main(String[] args) {
+        checkParsing();
+        checkSearch();
+        checkPostingLists();
+        Checks.report("QueryCheck");
+    }
+
+    private static void checkParsing() {
+        Checks.equal("happy feet", canonical("Happy  Feet"), "plain words form a phrase");
+        Checks.equal("(lord AND rings)", canonical("lord AND rings"), "explicit AND");
+        Checks.equal("(lord AND rings)", canonical("lord \"rings\""), "quoted phrase after a phrase is an AND operand");
+        Checks.equal("(harry OR (happy AND feet))", canonical("harry OR happy AND feet"), "AND binds tighter than OR");
+        Checks.equal("((harry OR happy) AND feet)", canonical("(harry OR happy) AND feet"), "parentheses");
+        Checks.equal("(NOT lord OR feet)", canonical("NOT lord OR feet"), "NOT binds tighter than OR");
+        Checks.equal("(feet AND NOT NOT happy)", canonical("feet NOT NOT happy"), "nested NOT");
+        Checks.equal("ha*", canonical("Ha*"), "prefix");
+
+        String[] queries = {"Happy Feet", "harry OR happy AND feet", "(harry OR happy) feet", "NOT lord OR feet",
+                "lord NOT (rings OR jim)", "ha* \"of the\"", "feet NOT NOT happy"};
+        for (String query : queries) {
+            String canonical = canonical(query);
+            Checks.equal(canonical, canonical(canonical), "canonical form of \"" + query + "\" parses to itself");
+            Checks.equal(search(query), search(canonical), "canonical form of \"" + query + "\" finds the same files");
+        }
+
+        String[] invalid = {"", "   ", "(lord", "lord)", "AND", "lord OR", "NOT", "*", "()"};
+        for (final String query : invalid) {
+            Checks.throwsIllegalArgument(new Runnable() {
+                public void run() {
+                    QueryParser.parse(query);
+                }
+            }, "invalid query \"" + query + "\"");
+        }
+    }
+
+    private static void checkSearch() {
+        Checks.equal(Arrays.asList("Happy Feet"), search("happy feet"), "phrase");
+        Checks.equal(Arrays.asList(), search("feet happy"), "phrase terms out of order");
+        Checks.equal(Arrays.asList("Lord of the Rings", "The Lord Jim"), search("lord"), "single term");
+        Checks.equal(Arrays.asList(), search("lord rings"), "phrase terms apart");
+        Checks.equal(Arrays.asList("Lord of the Rings"), search("lord AND rings"), "AND");
+        Checks.equal(Arrays.asList("Harry Potter", "Happy Feet", "Feet of Clay"), search("feet OR potter"), "OR");
+        Checks.equal(Arrays.asList("Feet of Clay"), search("feet NOT happy"), "NOT");
+        Checks.equal(Arrays.asList("Harry Potter", "Happy Feet", "Feet of Clay"), search("NOT lord"), "NOT alone");
+        Checks.equal(Arrays.asList("Harry Potter", "Happy Feet"), search("ha*"), "prefix");
+        Checks.equal(Arrays.asList("Harry Potter", "Happy Feet"), search("harry OR happy AND feet"), "precedence");
+        Checks.equal(Arrays.asList("Happy Feet"), search("(harry OR happy) AND feet"), "parentheses");
+        Checks.equal(Arrays.asList(), search("hobbit"), "unknown term");
+    }
+
+    private static void checkPostingLists() {
+        List<Integer> threes = new ArrayList<Integer>();
+        List<Integer> fives = new ArrayList<Integer>();
+        for (int id = 0; id < 1000; id++) {
+            if (id % 3 == 0) {
+                threes.add(id);
+            }
+            if (id % 5 == 0) {
+                fives.add(id);
+            }
+        }
+        PostingList a = postings(threes);
+        PostingList b = postings(fives);
+
+        List<Integer> both = new ArrayList<Integer>();
+        List<Integer> either = new ArrayList<Integer>();
+        List<Integer> onlyA = new ArrayList<Integer>();
+        for (int id = 0; id < 1000; id++) {
+            if (threes.contains(id) && fives.contains(id)) {
+                both.add(id);
+            }
+            if (threes.contains(id) || fives.contains(id)) {
+                either.add(id);
+            }
+            if (threes.contains(id) && !fives.contains(id)) {
+                onlyA.add(id);
+            }
+        }
+        Checks.equal(ids(both), a.intersect(b).toArray(), "intersection skipping through both lists");
+        Checks.equal(ids(both), b.intersect(a).toArray(), "intersection is symmetric");
+        Checks.equal(ids(either), a.union(b).toArray(), "union");
+        Checks.equal(ids(onlyA), a.difference(b).toArray(), "difference");
+        Checks.equal(ids(threes), a.union(PostingList.EMPTY).toArray(), "union with an empty list");
+        Checks.equal(0, a.intersect(PostingList.EMPTY).size(), "intersection with an empty list");
+        Checks.equal(ids(threes), a.difference(PostingList.EMPTY).toArray(), "difference with an empty list");
+        Checks.equal(0, a.difference(a).size(), "difference with itself");
+
+        // A short list against a long one, where the skip pointers of the long list do the work.
+        PostingList sparse = postings(Arrays.asList(2, 500, 997, 999));
+        Checks.equal(new int[]{999}, sparse.intersect(a).toArray(), "sparse intersection");
+        Checks.equal(new int[]{999}, a.intersect(sparse).toArray(), "sparse intersection, other order");
+        Checks.equal(new int[]{2, 500, 997}, sparse.difference(a).toArray(), "sparse difference");
+        Checks.equal(1000, PostingList.all(1000).size(), "all");
+    }
+
+    private static String canonical(String query) {
+        return QueryParser.parse(query).toString();
+    }
+
+    private static List<String> search(String query) {
+        return INDEX.search(QueryParser.parse(query));
+    }
+
+    private static PostingList postings(List<Integer> ids) {
+        PostingList.Builder builder = new PostingList.Builder();
+        for (int id : ids) {
+            builder.add(id);
+        }
+        return builder.build();
+    }
+
+    private static int[] ids(List<Integer> ids) {
+        int[] array = new int[ids.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = ids.get(i);
+        }
+        return array;
+    }
+}
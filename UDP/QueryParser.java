@@ -0,0 +1,185 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parser of the search query language.
+ * <pre>
+ *     query   := and ( "OR" and )*
+ *     and     := unary ( [ "AND" ] unary )*
+ *     unary   := "NOT" unary | primary
+ *     primary := "(" query ")" | '"' words '"' | term* | words
+ * </pre>
+ * Operators must be upper case. Consecutive plain words form a phrase, so a query without
+ * operators matches the same files as before the query language was introduced.
+ */
+public class QueryParser {
+
+    private static final int WORD = 0;
+    private static final int QUOTED = 1;
+    private static final int OPEN = 2;
+    private static final int CLOSE = 3;
+
+    private final List<Token> tokens;
+    private int position = 0;
+
+    private QueryParser(String query) {
+        this.tokens = lex(query);
+    }
+
+    /**
+     * Parses the given query string.
+     *
+     * @param query query string.
+     * @return parsed query.
+     * @throws IllegalArgumentException if the query is not valid.
+     */
+    public static Query parse(String query) {
+        QueryParser parser = new QueryParser(query);
+        if (parser.tokens.isEmpty()) {
+            throw new IllegalArgumentException("Query is empty");
+        }
+        Query result = parser.parseOr();
+        if (parser.position < parser.tokens.size()) {
+            throw new IllegalArgumentException("Unexpected \"" + parser.tokens.get(parser.position).text + "\" in query");
+        }
+        return result;
+    }
+
+    private Query parseOr() {
+        List<Query> operands = new ArrayList<Query>();
+        operands.add(parseAnd());
+        while (isOperator(peek(), "OR")) {
+            position++;
+            operands.add(parseAnd());
+        }
+        return operands.size() == 1 ? operands.get(0) : new Query.Or(operands);
+    }
+
+    private Query parseAnd() {
+        List<Query> operands = new ArrayList<Query>();
+        operands.add(parseUnary());
+        while (true) {
+            Token token = peek();
+            if (token == null || token.type == CLOSE || isOperator(token, "OR")) {
+                break;
+            }
+            if (isOperator(token, "AND")) {
+                position++;
+            }
+            operands.add(parseUnary());
+        }
+        return operands.size() == 1 ? operands.get(0) : new Query.And(operands);
+    }
+
+    private Query parseUnary() {
+        if (isOperator(peek(), "NOT")) {
+            position++;
+            return new Query.Not(parseUnary());
+        }
+        return parsePrimary();
+    }
+
+    private Query parsePrimary() {
+        Token token = peek();
+        if (token == null) {
+            throw new IllegalArgumentException("Unexpected end of query");
+        }
+        position++;
+
+        if (token.type == OPEN) {
+            Query query = parseOr();
+            Token close = peek();
+            if (close == null || close.type != CLOSE) {
+                throw new IllegalArgumentException("Missing closing parenthesis in query");
+            }
+            position++;
+            return query;
+        } else if (token.type == QUOTED) {
+            return phrase(InvertedIndex.tokenize(token.text));
+        } else if (token.type == CLOSE || isAnyOperator(token)) {
+            throw new IllegalArgumentException("Unexpected \"" + token.text + "\" in query");
+        } else if (isPrefix(token)) {
+            List<String> terms = InvertedIndex.tokenize(token.text.substring(0, token.text.length() - 1));
+            if (terms.size() != 1) {
+                throw new IllegalArgumentException("Invalid prefix \"" + token.text + "\" in query");
+            }
+            return new Query.Prefix(terms.get(0));
+        }
+
+        // Collect the run of plain words in to a single phrase.
+        List<String> terms = new ArrayList<String>(InvertedIndex.tokenize(token.text));
+        Token next = peek();
+        while (next != null && next.type == WORD && !isAnyOperator(next) && !isPrefix(next)) {
+            terms.addAll(InvertedIndex.tokenize(next.text));
+            position++;
+            next = peek();
+        }
+        return phrase(terms);
+    }
+
+    private Token peek() {
+        return position < tokens.size() ? tokens.get(position) : null;
+    }
+
+    private static Query phrase(List<String> terms) {
+        if (terms.isEmpty()) {
+            throw new IllegalArgumentException("Phrase has no searchable words");
+        }
+        return new Query.Phrase(terms);
+    }
+
+    private static boolean isOperator(Token token, String operator) {
+        return token != null && token.type == WORD && token.text.equals(operator);
+    }
+
+    private static boolean isAnyOperator(Token token) {
+        return isOperator(token, "AND") || isOperator(token, "OR") || isOperator(token, "NOT");
+    }
+
+    private static boolean isPrefix(Token token) {
+        return token.type == WORD && token.text.length() > 1 && token.text.endsWith("*");
+    }
+
+    // Splits the query in to words, quoted phrases and parentheses.
+    private static List<Token> lex(String query) {
+        List<Token> tokens = new ArrayList<Token>();
+        int i = 0;
+        while (i < query.length()) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(') {
+                tokens.add(new Token(OPEN, "("));
+                i++;
+            } else if (c == ')') {
+                tokens.add(new Token(CLOSE, ")"));
+                i++;
+            } else if (c == '"') {
+                int end = query.indexOf('"', i + 1);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Missing closing quote in query");
+                }
+                tokens.add(new Token(QUOTED, query.substring(i + 1, end)));
+                i = end + 1;
+            } else {
+                int start = i;
+                while (i < query.length() && !Character.isWhitespace(query.charAt(i))
+                        && "()\"".indexOf(query.charAt(i)) < 0) {
+                    i++;
+                }
+                tokens.add(new Token(WORD, query.substring(start, i)));
+            }
+        }
+        return tokens;
+    }
+
+    private static class Token {
+        private final int type;
+        private final String text;
+
+        Token(int type, String text) {
+            this.type = type;
+            this.text = text;
+        }
+    }
+}
@@ -1,8 +1,8 @@
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.StringTokenizer;
 
 /**
  * Created by Mirage on 2017-01-08.
@@ -14,11 +14,19 @@ import java.util.StringTokenizer;
 public class UDPMessageService implements MessageService {
 
 
+    // DatagramSocket needs a backing array, so the pool never hands out direct buffers here.
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final BufferPool bufferPool = new BufferPool(Configuration.BUFFER_POOL_SIZE, Configuration.DATAGRAM_SIZE, false, metrics);
+    private final MessageDispatcher dispatcher = new MessageDispatcher(bufferPool, new SocketSender(), metrics);
+    private final DispatchQueue dispatchQueue = new DispatchQueue("udp", bufferPool, new DispatchQueue.Handler() {
+        public void handle(Message message, InetAddress sourceAddress, int sourcePort) throws IOException {
+            dispatcher.onReceived(message);
+            dispatcher.dispatch(message, sourceAddress, sourcePort);
+        }
+    }, Configuration.WORKER_THREADS, Configuration.RECEIVE_QUEUE_SIZE, metrics);
     private DatagramSocket socket = null;
+    private InetSocketAddress bootstrapAddress = null;
     private Thread listenerThread = null;
-    private int receivedQueries = 0;
-    private int forwardedQueries = 0;
-    private int answeredQueries = 0;
 
     /**
      * Register with bootstrap server.
@@ -28,34 +36,33 @@ public class UDPMessageService implements MessageService {
      */
     public List<NodeData> register(NodeData nodeData) {
 
+        if (bootstrapAddress == null) {
+            bootstrapAddress = AddressCache.lookup(Configuration.BOOTSTRAP_IP, Configuration.BOOTSTRAP_PORT);
+        }
         if (socket == null) {
             try {
-                System.out.println("Binding UDP socket to " + nodeData.getIP() + ":" + nodeData.getPort());
+                Log.info("Binding UDP socket to {}:{}", nodeData.getIP(), nodeData.getPort());
                 socket = new DatagramSocket(nodeData.getPort());
-                System.out.println("Binding Successful");
+                socket.setSoTimeout(Configuration.LISTENER_TIMEOUT);
+                Log.info("Binding Successful");
             } catch (SocketException e) {
-                e.printStackTrace();
                 throw new RuntimeException("Failed to bind UDP socket port " + nodeData.getPort(), e);
             }
         }
 
-        String bootstrapMessage = sendMessageBootstrap("REG " + nodeData.getIP() + " " + nodeData.getPort() + " " + nodeData.getUsername());
-
-        StringTokenizer st = new StringTokenizer(bootstrapMessage, " ");
-        String length = st.nextToken();
-        String command = st.nextToken();
-        int nodeCount = Integer.parseInt(st.nextToken());
+        ByteBuffer request = bufferPool.lease();
+        MessageCodec.encodeRegister(request, nodeData.getIP(), nodeData.getPort(), nodeData.getUsername());
+        Message bootstrapMessage = sendMessageBootstrap(request);
 
         List<NodeData> randNeighbours = new ArrayList<NodeData>();
-        if (command.equals("REGOK")) {
+        if (bootstrapMessage.getOpcode() == Message.REGOK) {
+            int nodeCount = bootstrapMessage.getValue();
             if (nodeCount < 5) {
                 for (int i = 0; i < nodeCount; i++) {
-                    String ip = st.nextToken();
-                    int port = Integer.parseInt(st.nextToken());
-                    randNeighbours.add(new NodeData(ip, port, null));
+                    randNeighbours.add(new NodeData(bootstrapMessage.getNodeIP(i), bootstrapMessage.getNodePort(i), null));
                 }
             } else {
-                System.out.println("Error registering to Bootstrap server: " + nodeCount);
+                Log.warn("Error registering to Bootstrap server: {}", nodeCount);
             }
         }
 
@@ -73,19 +80,16 @@ public class UDPMessageService implements MessageService {
 
         if (socket != null) {
 
-            String bootstrapMessage = sendMessageBootstrap("UNREG " + nodeData.getIP() + " " + nodeData.getPort() + " " + nodeData.getUsername());
+            ByteBuffer request = bufferPool.lease();
+            MessageCodec.encodeUnregister(request, nodeData.getIP(), nodeData.getPort(), nodeData.getUsername());
+            Message bootstrapMessage = sendMessageBootstrap(request);
 
-            StringTokenizer st = new StringTokenizer(bootstrapMessage, " ");
-
-            String length = st.nextToken();
-            String command = st.nextToken();
-            int value = Integer.parseInt(st.nextToken());
-
-            if (command.equals("UNROK")) {
+            if (bootstrapMessage.getOpcode() == Message.UNROK) {
+                int value = bootstrapMessage.getValue();
                 if (value < 1) {
                     return true;
                 } else {
-                    System.out.println("Error unregistering from Bootstrap server: " + value);
+                    Log.warn("Error unregistering from Bootstrap server: {}", value);
                 }
             }
 
@@ -104,20 +108,17 @@ public class UDPMessageService implements MessageService {
     public boolean join(NodeData nodeData, NodeData neighbor) {
         if (socket != null) {
 
-            String nodeMessage = sendMessage("JOIN " + nodeData.getIP() + " " + nodeData.getPort(), neighbor.getIP(), neighbor.getPort());
-
-            StringTokenizer st = new StringTokenizer(nodeMessage, " ");
-
-            String length = st.nextToken();
-            String command = st.nextToken();
-            int value = Integer.parseInt(st.nextToken());
+            ByteBuffer request = bufferPool.lease();
+            MessageCodec.encodeJoin(request, nodeData.getIP(), nodeData.getPort(), Configuration.BINARY_PROTOCOL);
+            Message nodeMessage = sendMessage(request, neighbor);
 
-
-            if (command.equals("JOINOK")) {
+            if (nodeMessage.getOpcode() == Message.JOINOK) {
+                int value = nodeMessage.getValue();
                 if (value < 1) {
+                    dispatcher.onJoined(neighbor, nodeMessage);
                     return true;
                 } else {
-                    System.out.println("Error joining to node " + value);
+                    Log.warn("Error joining to node {}", value);
                 }
             }
         }
@@ -134,18 +135,17 @@ public class UDPMessageService implements MessageService {
     public boolean leave(NodeData nodeData, NodeData neighbor) {
         if (socket != null) {
 
-            String nodeMessage = sendMessage("LEAVE " + nodeData.getIP() + " " + nodeData.getPort(), neighbor.getIP(), neighbor.getPort());
-            StringTokenizer st = new StringTokenizer(nodeMessage, " ");
-
-            String length = st.nextToken();
-            String command = st.nextToken();
+            ByteBuffer request = bufferPool.lease();
+            MessageCodec.encodeLeave(request, nodeData.getIP(), nodeData.getPort());
+            Message nodeMessage = sendMessage(request, neighbor);
+            dispatcher.onLeft(neighbor);
 
-            if (command.equals("LEAVEOK")) {
-                int value = Integer.parseInt(st.nextToken());
+            if (nodeMessage.getOpcode() == Message.LEAVEOK) {
+                int value = nodeMessage.getValue();
                 if (value < 1) {
                     return true;
                 } else {
-                    System.out.println("Error leaving from node " + value);
+                    Log.warn("Error leaving from node {}", value);
                 }
             }
 
@@ -157,25 +157,44 @@ public class UDPMessageService implements MessageService {
      * Sends a search request to a neighbour.
      *
      * @param filename search file name.
+     * @param queryId  unique id of the query.
+     * @param hops     number of times the query may be forwarded after the neighbour.
+     * @param walk     true to send the query as a random walker, which each node forwards to a single neighbour.
      * @param nodeData node details of the searching node
      * @param neighbor node details of the neighbour.
      */
-    public void search(String filename, NodeData nodeData, NodeData neighbor) {
+    public void search(String filename, long queryId, int hops, boolean walk, NodeData nodeData, NodeData neighbor) {
+
+        try {
+            dispatcher.search(filename, queryId, hops, walk, nodeData, neighbor);
+        } catch (IOException e) {
+            Log.error("Could not send search request to " + neighbor, e);
+        }
+
+    }
+
+    /**
+     * Cancels a query of this node along the paths it was sent on.
+     *
+     * @param queryId  id the query was sent with.
+     * @param nodeData node details of this node.
+     */
+    public void cancel(long queryId, NodeData nodeData) {
 
         try {
-            String searchRequest = "SER " + nodeData.getIP() + " " + nodeData.getPort() + " \"" + filename + "\" " + Configuration.HOPS_MAX;
-            searchRequest = String.format("%04d", searchRequest.length() + 5) + " " + searchRequest;
+            dispatcher.cancel(queryId, nodeData);
+        } catch (IOException e) {
+            Log.error("Could not cancel query " + queryId, e);
+        }
 
-            DatagramPacket dpResponse = new DatagramPacket(searchRequest.getBytes(), searchRequest.getBytes().length,
-                    InetAddress.getByName(neighbor.getIP()), neighbor.getPort());
+    }
 
-            System.out.println("Sending (" + searchRequest + ") to Neighbor at " + neighbor.toString());
-            socket.send(dpResponse);
+    public void publishCatalog(NodeData nodeData, NodeData neighbor, BloomFilter catalog) {
 
-        } catch (UnknownHostException e) {
-            e.printStackTrace();
+        try {
+            dispatcher.publishCatalog(nodeData, neighbor, catalog);
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("Could not send the catalog to " + neighbor, e);
         }
 
     }
@@ -183,316 +202,143 @@ public class UDPMessageService implements MessageService {
 
     public void startListening(MessageReceivedEvent receivedEvent) {
 
-        System.out.println("Starting listener thread...");
-        listenerThread = new Thread(new Listener(receivedEvent));
+        Log.info("Starting listener thread...");
+        dispatcher.setReceivedEvent(receivedEvent);
+        dispatchQueue.start();
+        listenerThread = new Thread(new Listener(), "udp-listener");
         listenerThread.start();
 
     }
 
     public void stopListening() {
 
-        System.out.println("Stopping listener thread...");
+        Log.info("Stopping listener thread...");
         listenerThread.interrupt();
 
         try {
             listenerThread.join();
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            Log.error("Interrupted while stopping the listener thread", e);
         }
+        dispatchQueue.stop();
 
     }
 
-    public int getReceivedQueries() {
-        return receivedQueries;
+    public MetricsRegistry getMetrics() {
+        return metrics;
     }
 
-    public int getForwardedQueries() {
-        return forwardedQueries;
+    public void resetStatistics() {
+        metrics.reset();
     }
 
-    public int getAnsweredQueries() {
-        return answeredQueries;
+    // client mode communication with bootstrap, the request buffer is released once the response arrives
+    private Message sendMessageBootstrap(ByteBuffer request) {
+        Log.info("Sending ({}) to Bootstrap Server at {}:{}", MessageCodec.toString(request), Configuration.BOOTSTRAP_IP,
+                Configuration.BOOTSTRAP_PORT);
+        return sendAndReceive(request, bootstrapAddress, "Bootstrap Server");
     }
 
-    public void resetStatistics() {
-        receivedQueries = 0;
-        forwardedQueries = 0;
-        answeredQueries = 0;
+    // client mode communication with neighbour, the request buffer is released once the response arrives
+    private Message sendMessage(ByteBuffer request, NodeData neighbor) {
+        Log.info("Sending ({}) to Node at {}", MessageCodec.toString(request), neighbor);
+        return sendAndReceive(request, dispatcher.resolve(neighbor), "Node");
     }
 
-    // client mode communication with bootstrap
-    private String sendMessageBootstrap(String message) {
-        while (true) {
-            try {
-
-                String request = String.format("%04d", message.length() + 5) + " " + message;
-
-                DatagramPacket dpRequest = new DatagramPacket(request.getBytes(), request.getBytes().length,
-                        InetAddress.getByName(Configuration.BOOTSTRAP_IP), Configuration.BOOTSTRAP_PORT);
-
-                System.out.println("Sending (" + request + ") to Bootstrap Server at " + Configuration.BOOTSTRAP_IP + ":"
-                        + Configuration.BOOTSTRAP_PORT);
-                socket.send(dpRequest);
-
-                socket.setSoTimeout(Configuration.LISTENER_TIMEOUT);
+    private Message sendAndReceive(ByteBuffer request, InetSocketAddress target, String peer) {
+        Message response = new Message();
+        try {
+            while (true) {
+                ByteBuffer buffer = bufferPool.lease();
+                try {
 
-                byte[] buffer = new byte[65536];
-                DatagramPacket incoming = new DatagramPacket(buffer, buffer.length);
+                    DatagramPacket dpRequest = new DatagramPacket(request.array(), request.arrayOffset(), request.limit(), target);
+                    dispatcher.onSent(request);
+                    socket.send(dpRequest);
 
-                System.out.println("Waiting for Bootstrap Server response...");
-                socket.receive(incoming);
+                    DatagramPacket incoming = new DatagramPacket(buffer.array(), buffer.capacity());
 
-                byte[] data = incoming.getData();
+                    Log.debug("Waiting for {} response...", peer);
+                    socket.receive(incoming);
 
-                String bootstrapResponse = new String(data, 0, incoming.getLength());
-                System.out.println("Bootstrap Response successful (" + bootstrapResponse + ")");
+                    buffer.limit(incoming.getLength());
+                    MessageCodec.decode(buffer, response);
+                    dispatcher.onReceived(response);
+                    Log.info("{} Response successful ({})", peer, response);
 
-                return bootstrapResponse;
-            } catch (SocketTimeoutException ex) {
-                System.out.println("Connection timeout. Re-connecting...");
-            } catch (IOException ex) {
-                ex.printStackTrace();
+                    // The response must outlive the pooled buffer.
+                    return response.copy();
+                } catch (SocketTimeoutException ex) {
+                    Log.warn("Connection timeout. Re-connecting...");
+                } catch (IllegalArgumentException ex) {
+                    Log.warn("Invalid response ({}). Re-connecting...", response);
+                } catch (IOException ex) {
+                    dispatcher.onSendError();
+                    Log.error("Could not reach " + peer + " at " + target, ex);
+                } finally {
+                    bufferPool.release(buffer);
+                }
             }
+        } finally {
+            bufferPool.release(request);
         }
     }
 
-    // client mode communication with neighbour
-    private String sendMessage(String message, String ip, int port) {
+    /**
+     * Sends the responses and forwards of the dispatcher through the socket.
+     */
+    private class SocketSender implements MessageDispatcher.DatagramSender {
 
-        while (true) {
+        public void send(ByteBuffer datagram, InetSocketAddress target) throws IOException {
             try {
-
-                String request = String.format("%04d", message.length() + 5) + " " + message;
-
-                DatagramPacket dpRequest = new DatagramPacket(request.getBytes(), request.getBytes().length,
-                        InetAddress.getByName(ip), port);
-
-                System.out.println("Sending (" + request + ") to Node at " + ip + ":" + port);
-                socket.send(dpRequest);
-
-                socket.setSoTimeout(Configuration.LISTENER_TIMEOUT);
-
-                byte[] buffer = new byte[65536];
-                DatagramPacket incoming = new DatagramPacket(buffer, buffer.length);
-
-                System.out.println("Waiting for Node response...");
-                socket.receive(incoming);
-
-                byte[] data = incoming.getData();
-
-                String nodeResponse = new String(data, 0, incoming.getLength());
-                System.out.println("Node Response successful (" + nodeResponse + ")");
-
-                return nodeResponse;
-            } catch (SocketTimeoutException ex) {
-                System.out.println("Connection timeout. Re-connecting...");
-            } catch (IOException ex) {
-                ex.printStackTrace();
+                DatagramPacket dpResponse = new DatagramPacket(datagram.array(), datagram.arrayOffset(), datagram.limit(), target);
+                socket.send(dpResponse);
+            } finally {
+                bufferPool.release(datagram);
             }
         }
     }
 
     /**
-     * Message receiving thread implantation.
+     * Message receiving thread implantation. Received datagrams are handed to the dispatch queue.
      */
     private class Listener implements Runnable {
 
-        private MessageReceivedEvent receivedEvent;
-
-        Listener(MessageReceivedEvent receivedEvent) {
-            this.receivedEvent = receivedEvent;
-        }
-
         public void run() {
-            System.out.println("Listener thread started.");
+            Log.info("Listener thread started.");
 
             boolean isTimeout = false;
+            DatagramPacket incoming = new DatagramPacket(new byte[0], 0);
             while (!Thread.currentThread().isInterrupted()) {
+                ByteBuffer buffer = bufferPool.lease();
                 try {
-
-                    byte[] buffer = new byte[65536];
-                    DatagramPacket incoming = new DatagramPacket(buffer, buffer.length);
+                    incoming.setData(buffer.array(), 0, buffer.capacity());
 
                     if (!isTimeout) {
-                        System.out.println("Listening for Node request...");
+                        Log.debug("Listening for Node request...");
                     }
-                    socket.setSoTimeout(Configuration.LISTENER_TIMEOUT);
                     socket.receive(incoming);
                     isTimeout = false;
-                    byte[] data = incoming.getData();
-                    String nodeResponse = new String(data, 0, incoming.getLength());
-                    System.out.println("Node request received (" + nodeResponse + ")");
-
-                    StringTokenizer st = new StringTokenizer(nodeResponse, " ");
-
-                    String length = st.nextToken();
-                    String command = st.nextToken();
-
 
-                    if (command.equals("JOIN")) {
-
-                        String ip = st.nextToken();
-                        int port = Integer.parseInt(st.nextToken());
-
-                        boolean result = receivedEvent.onJoin(new NodeData(ip, port, null));
-
-                        String response = "JOINOK " + (result ? 0 : 9999);
-                        response = String.format("%04d", response.length() + 5) + " " + response;
-
-                        DatagramPacket dpResponse = new DatagramPacket(response.getBytes(), response.getBytes().length,
-                                InetAddress.getByName(ip), port);
-
-                        System.out.println("Sending (" + response + ") to Node at " + ip + ":" + port);
-                        socket.send(dpResponse);
-
-                    } else if (command.equals("LEAVE")) {
-
-                        String ip = st.nextToken();
-                        int port = Integer.parseInt(st.nextToken());
-
-                        boolean result = receivedEvent.onLeave(new NodeData(ip, port, null));
-
-                        String response = "LEAVEOK " + (result ? 0 : 9999);
-                        response = String.format("%04d", response.length() + 5) + " " + response;
-
-                        DatagramPacket dpResponse = new DatagramPacket(response.getBytes(), response.getBytes().length,
-                                InetAddress.getByName(ip), port);
-
-                        System.out.println("Sending (" + response + ") to Node at " + ip + ":" + port);
-                        socket.send(dpResponse);
-
-                    } else if (command.equals("SER")) {
-                        receivedQueries++;
-                        String ip = st.nextToken();
-                        int port = Integer.parseInt(st.nextToken());
-                        String fileName = "";
-                        String fileNamePart;
-                        // Decode file names with spaces
-                        while (st.hasMoreTokens()) {
-                            fileNamePart = st.nextToken();
-
-                            if (fileNamePart.startsWith("\"") && fileNamePart.endsWith("\"")) {
-                                fileName = fileNamePart;
-                                break;
-                            }
-
-                            if (fileNamePart.startsWith("\"")) {
-                                fileName = fileNamePart;
-                            } else if (fileNamePart.endsWith("\"")) {
-                                fileName += " " + fileNamePart;
-                                break;
-                            } else {
-                                fileName += " " + fileNamePart;
-                            }
-                        }
-                        int hops = Integer.parseInt(st.nextToken());
-
-                        SearchResult searchResult = receivedEvent.onSearch(fileName.substring(1, fileName.length() - 1), new NodeData(ip, port, null),
-                                new NodeData(incoming.getAddress().getHostAddress(), incoming.getPort(), null));
-
-                        // Send message according to the search result.
-                        if (searchResult.isSuccess()) {
-                            System.out.println("Search success Node: " + searchResult.getOwnerNode().toString());
-                            String response = "SEROK " + searchResult.getMatchingFileNames().size() + " "
-                                    + searchResult.getOwnerNode().getIP() + " " + searchResult.getOwnerNode().getPort() + " " + hops;
-
-                            List<String> matchingFiles = searchResult.getMatchingFileNames();
-
-                            for (String matchingFile : matchingFiles) {
-                                response += " \"" + matchingFile + "\"";
-                            }
-                            response = String.format("%04d", response.length() + 5) + " " + response;
-
-                            DatagramPacket dpResponse = new DatagramPacket(response.getBytes(), response.getBytes().length,
-                                    InetAddress.getByName(ip), port);
-
-                            System.out.println("Sending (" + response + ") to Node at " + ip + ":" + port);
-                            socket.send(dpResponse);
-                            answeredQueries++;
-                        } else {
-                            System.out.println("Search fail Node: " + searchResult.getOwnerNode().toString());
-                            if (hops > 0) {
-                                hops--;
-                                List<NodeData> selectedNeighbours = searchResult.getSelectedNeighbours();
-
-                                for (NodeData selectedNeighbour : selectedNeighbours) {
-                                    String response = "SER " + ip + " " + port + " " + fileName + " " + hops;
-                                    response = String.format("%04d", response.length() + 5) + " " + response;
-
-                                    DatagramPacket dpResponse = new DatagramPacket(response.getBytes(), response.getBytes().length,
-                                            InetAddress.getByName(selectedNeighbour.getIP()), selectedNeighbour.getPort());
-
-                                    System.out.println("Sending (" + response + ") to Node at "
-                                            + selectedNeighbour.getIP() + ":" + selectedNeighbour.getPort());
-                                    socket.send(dpResponse);
-                                    forwardedQueries++;
-                                }
-                            } else {
-                                System.out.println("Hop is 0, dropping the request. Node: " + searchResult.getOwnerNode().toString());
-                            }
-                        }
-
-                    } else if (command.equals("SEROK")) {
-                        int fileCount = Integer.parseInt(st.nextToken());
-                        String ip = st.nextToken();
-                        int port = Integer.parseInt(st.nextToken());
-                        int hops = Integer.parseInt(st.nextToken());
-                        List<String> fileNames = new ArrayList<String>();
-
-                        String fileName = "";
-                        String fileNamePart;
-                        while (st.hasMoreTokens()) {
-                            fileNamePart = st.nextToken();
-
-                            if (fileNamePart.startsWith("\"") && fileNamePart.endsWith("\"")) {
-                                fileName = fileNamePart;
-                                fileNames.add(fileName.substring(1, fileName.length() - 1));
-                                fileName = "";
-                            }
-
-                            if (fileNamePart.startsWith("\"")) {
-                                fileName = fileNamePart;
-                            } else if (fileNamePart.endsWith("\"")) {
-                                fileName += " " + fileNamePart;
-                                fileNames.add(fileName.substring(1, fileName.length() - 1));
-                                fileName = "";
-                            } else {
-                                fileName += " " + fileNamePart;
-                            }
-                        }
-
-                        if (fileCount != fileNames.size()) {
-                            System.out.println("Could not recover file names.");
-                        }
-
-                        SearchResult searchResult = new SearchResult();
-                        searchResult.setSuccess(true);
-                        searchResult.setMatchingFileNames(fileNames);
-                        searchResult.setOwnerNode(new NodeData(ip, port, null));
-                        searchResult.setHopCount(Configuration.HOPS_MAX - hops);
-                        receivedEvent.onSearchSuccess(searchResult);
-
-                    } else {
-                        String ip = st.nextToken();
-                        int port = Integer.parseInt(st.nextToken());
-
-                        String response = "ERROR";
-                        response = String.format("%04d", response.length() + 5) + " " + response;
-
-                        DatagramPacket dpResponse = new DatagramPacket(response.getBytes(), response.getBytes().length,
-                                InetAddress.getByName(ip), port);
-
-                        System.out.println("Sending (" + response + ") to Node at " + ip + ":" + port);
-                        socket.send(dpResponse);
+                    buffer.limit(incoming.getLength());
+                    // The dispatch queue owns the buffer from here on.
+                    ByteBuffer received = buffer;
+                    buffer = null;
+                    if (!dispatchQueue.submit(received, incoming.getAddress(), incoming.getPort())) {
+                        Log.warn("Receive queue full, dropping datagram from {}:{}", incoming.getAddress().getHostAddress(),
+                                incoming.getPort());
                     }
-
                 } catch (SocketTimeoutException ex) {
                     isTimeout = true;
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    Log.error("Could not receive datagram", e);
+                } finally {
+                    if (buffer != null) {
+                        bufferPool.release(buffer);
+                    }
                 }
             }
-            System.out.println("Listener thread stopped.");
+            Log.info("Listener thread stopped.");
         }
     }
 }